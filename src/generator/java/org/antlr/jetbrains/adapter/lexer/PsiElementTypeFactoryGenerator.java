@@ -0,0 +1,227 @@
+package org.antlr.jetbrains.adapter.lexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.antlr.v4.Tool;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.tool.Grammar;
+
+/**
+ * Build-time generator of precomputed element type tables. For a grammar
+ * {@code X.g4} it emits class {@code XElementTypes} holding token literal
+ * and symbolic names, rule names and switch-based name lookups as
+ * constants, so that a {@code PsiElementTypeFactory} can be created on IDE
+ * startup without instantiating the generated parser (and deserializing
+ * its ATN). The factory looks names up through the generated switches
+ * instead of building hash maps:
+ * <pre>
+ * PsiElementTypeFactory factory = XElementTypes.builder(XLanguage.INSTANCE)
+ *         .addPsiElement(XParser.RULE_function, FunctionSubtree::new)
+ *         .build();
+ * </pre>
+ * Run it from the build, e.g. with the {@code GenerateElementTypes} task of
+ * {@code gradle/element-types.gradle}, or directly:
+ * <pre>
+ * java PsiElementTypeFactoryGenerator &lt;grammar.g4&gt; &lt;output dir&gt; &lt;package&gt; [class name]
+ * </pre>
+ * It is a build-time tool: it lives in the {@code generator} source set,
+ * is published as the {@code generator} artifact and needs the ANTLR tool
+ * ({@code org.antlr:antlr4}), which plug-ins do not ship.
+ */
+public class PsiElementTypeFactoryGenerator {
+    private static final String INDENT = "    ";
+
+    private final Grammar grammar;
+    private final String packageName;
+    private final String className;
+
+    /**
+     * Create new generator for a loaded grammar.
+     */
+    public PsiElementTypeFactoryGenerator(Grammar grammar, String packageName, String className) {
+        this.grammar = grammar;
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    /**
+     * Entry point for build scripts.
+     *
+     * @throws IllegalArgumentException if arguments are missing or grammar can not be loaded
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("usage: PsiElementTypeFactoryGenerator"
+                    + " <grammar.g4> <output dir> <package> [class name]");
+        }
+        File grammarFile = new File(args[0]);
+        File outputDirectory = new File(args[1]);
+        Grammar grammar = loadGrammar(grammarFile);
+        String className = args.length > 3 ? args[3] : grammar.name + "ElementTypes";
+        new PsiElementTypeFactoryGenerator(grammar, args[2], className).writeTo(outputDirectory);
+    }
+
+    /**
+     * Load and process grammar file; {@code tokenVocab} imports are looked
+     * up in the grammar's directory.
+     */
+    public static Grammar loadGrammar(File grammarFile) {
+        String libDirectory = grammarFile.getAbsoluteFile().getParent();
+        Tool tool = new Tool(new String[] {"-lib", libDirectory});
+        Grammar grammar = tool.loadGrammar(grammarFile.getPath());
+        if (grammar == null || tool.getNumErrors() > 0) {
+            throw new IllegalArgumentException("Can not load grammar " + grammarFile);
+        }
+        return grammar;
+    }
+
+    /**
+     * Write generated class into its package directory under given source root.
+     */
+    public File writeTo(File outputDirectory) throws IOException {
+        File packageDirectory = new File(outputDirectory, packageName.replace('.', File.separatorChar));
+        if (!packageDirectory.isDirectory() && !packageDirectory.mkdirs()) {
+            throw new IOException("Can not create directory " + packageDirectory);
+        }
+        File file = new File(packageDirectory, className + ".java");
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(generate());
+        }
+        return file;
+    }
+
+    /**
+     * Returns source code of the element type tables class.
+     */
+    public String generate() {
+        Vocabulary vocabulary = grammar.getVocabulary();
+        int maxTokenType = vocabulary.getMaxTokenType();
+        String[] literalNames = new String[maxTokenType + 1];
+        String[] symbolicNames = new String[maxTokenType + 1];
+        // same semantics as PsiElementTypeFactory: last token with a given display name wins
+        Map<String, Integer> tokenTypes = new LinkedHashMap<>();
+        for (int i = 0; i <= maxTokenType; i++) {
+            literalNames[i] = vocabulary.getLiteralName(i);
+            symbolicNames[i] = vocabulary.getSymbolicName(i);
+            tokenTypes.put(vocabulary.getDisplayName(i), i);
+        }
+        String[] ruleNames = grammar.getRuleNames();
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by ").append(getClass().getSimpleName())
+                .append(" from ").append(new File(grammar.fileName).getName()).append(". Do not edit.\n");
+        out.append("package ").append(packageName).append(";\n\n");
+        out.append("import com.intellij.lang.Language;\n");
+        out.append("import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;\n");
+        out.append("import org.antlr.v4.runtime.Token;\n");
+        out.append("import org.antlr.v4.runtime.Vocabulary;\n");
+        out.append("import org.antlr.v4.runtime.VocabularyImpl;\n\n");
+        out.append("/**\n * Element type tables of grammar ").append(grammar.name).append(".\n */\n");
+        out.append("public final class ").append(className).append(" {\n");
+        out.append(INDENT).append("public static final int MAX_TOKEN_TYPE = ").append(maxTokenType).append(";\n\n");
+        appendArray(out, "LITERAL_NAMES", literalNames);
+        appendArray(out, "SYMBOLIC_NAMES", symbolicNames);
+        appendArray(out, "RULE_NAMES", ruleNames);
+        out.append(INDENT).append("public static final Vocabulary VOCABULARY =\n")
+                .append(INDENT).append(INDENT).append("new VocabularyImpl(LITERAL_NAMES, SYMBOLIC_NAMES);\n\n");
+        out.append(INDENT).append("private ").append(className).append("() {\n").append(INDENT).append("}\n\n");
+
+        out.append(INDENT).append("public static String[] getRuleNames() {\n");
+        out.append(INDENT).append(INDENT).append("return RULE_NAMES.clone();\n");
+        out.append(INDENT).append("}\n\n");
+
+        Map<String, Integer> ruleIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < ruleNames.length; i++) {
+            ruleIndexes.put(ruleNames[i], i);
+        }
+        appendLookup(out, "getTokenType", "displayName", tokenTypes, "Token.INVALID_TYPE");
+        appendLookup(out, "getRuleIndex", "ruleName", ruleIndexes, "-1");
+
+        out.append(INDENT).append("public static PsiElementTypeFactory.Builder builder(Language language) {\n");
+        out.append(INDENT).append(INDENT).append("return PsiElementTypeFactory.builder()\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT).append(".language(language)\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT).append(".vocabulary(VOCABULARY)\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT).append(".ruleNames(RULE_NAMES)\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+                .append(".tokenTypeLookup(").append(className).append("::getTokenType)\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+                .append(".ruleIndexLookup(").append(className).append("::getRuleIndex);\n");
+        out.append(INDENT).append("}\n\n");
+
+        out.append(INDENT).append("public static PsiElementTypeFactory create(Language language) {\n");
+        out.append(INDENT).append(INDENT).append("return builder(language).build();\n");
+        out.append(INDENT).append("}\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static void appendArray(StringBuilder out, String name, String[] values) {
+        out.append(INDENT).append("private static final String[] ").append(name).append(" = {\n");
+        for (String value : values) {
+            out.append(INDENT).append(INDENT).append(literal(value)).append(",\n");
+        }
+        out.append(INDENT).append("};\n\n");
+    }
+
+    private static void appendLookup(StringBuilder out, String methodName, String argument,
+                                     Map<String, Integer> values, String defaultValue) {
+        out.append(INDENT).append("public static int ").append(methodName)
+                .append("(String ").append(argument).append(") {\n");
+        out.append(INDENT).append(INDENT).append("switch (").append(argument).append(") {\n");
+        for (Map.Entry<String, Integer> entry : values.entrySet()) {
+            out.append(INDENT).append(INDENT).append(INDENT).append("case ").append(literal(entry.getKey()))
+                    .append(":\n");
+            out.append(INDENT).append(INDENT).append(INDENT).append(INDENT).append("return ")
+                    .append(entry.getValue()).append(";\n");
+        }
+        out.append(INDENT).append(INDENT).append(INDENT).append("default:\n");
+        out.append(INDENT).append(INDENT).append(INDENT).append(INDENT).append("return ")
+                .append(defaultValue).append(";\n");
+        out.append(INDENT).append(INDENT).append("}\n");
+        out.append(INDENT).append("}\n\n");
+    }
+
+    /**
+     * Returns Java source literal for given string.
+     */
+    static String literal(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder buf = new StringBuilder(value.length() + 2);
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        buf.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+        return buf.toString();
+    }
+}
@@ -3,29 +3,35 @@ package org.antlr.jetbrains.adapter;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiErrorElement;
 import com.intellij.psi.PsiNamedElement;
-import java.util.Collection;
+import java.util.List;
 import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
 import org.antlr.jetbrains.adapter.psi.ScopeNode;
-import org.antlr.jetbrains.adapter.psi.Trees;
 import org.antlr.jetbrains.adapter.xpath.XPath;
 
 public class SymtabUtils {
 
     /**
      * Return the root of a def subtree chosen from among the
-     * matches from xpathToIDNodes that matches namedElement's text.
+     * matches from xpathToIdNodes that matches namedElement's text.
      * Assumption: ID nodes are direct children of def subtree roots.
+     * If several definitions have the same name, the last one wins.
      */
     public static PsiElement resolve(ScopeNode scope,
                                      PsiElementTypeFactory psiElementTypeFactory,
                                      PsiNamedElement namedElement,
                                      String xpathToIdNodes) {
-        Collection<? extends PsiElement> defIdNodes =
-                XPath.findAll(psiElementTypeFactory, scope, xpathToIdNodes);
         String id = namedElement.getName();
-        PsiElement idNode = Trees.toMap(defIdNodes).get(id); // Find identifier node of variable definition
-        if (idNode != null) {
-            return idNode.getParent(); // return the def subtree root
+        // Find identifier nodes of definitions with that name; the text
+        // predicate selects them during evaluation, so only matches are
+        // collected. Results are cached on the scope per name until PSI
+        // changes.
+        if (id != null) {
+            List<PsiElement> idNodes = XPath.compile(psiElementTypeFactory, xpathToIdNodes + "[.=$name]")
+                    .bind("name", id)
+                    .evaluateCached(scope);
+            if (!idNodes.isEmpty()) {
+                return idNodes.get(idNodes.size() - 1).getParent(); // return the def subtree root
+            }
         }
 
         // If not found, ask the enclosing scope/context to resolve.
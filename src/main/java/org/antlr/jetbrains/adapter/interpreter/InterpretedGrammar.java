@@ -0,0 +1,274 @@
+package org.antlr.jetbrains.adapter.interpreter;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.lang.Language;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import org.antlr.jetbrains.adapter.lexer.AntlrLexerAdapter;
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.jetbrains.adapter.psi.AntlrPsiNode;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.LexerInterpreter;
+import org.antlr.v4.runtime.ParserInterpreter;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNDeserializer;
+import org.antlr.v4.runtime.atn.ATNSerializer;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.tool.ANTLRMessage;
+import org.antlr.v4.tool.ANTLRToolListener;
+import org.antlr.v4.tool.Grammar;
+import org.antlr.v4.tool.LexerGrammar;
+
+/**
+ * A grammar loaded from {@code .g4} text at runtime, to be run by ANTLR's
+ * {@link LexerInterpreter} and {@link ParserInterpreter} instead of
+ * generated recognizers. Useful while developing a grammar: a plugin can
+ * reload it on the fly without regenerating and rebuilding.
+ * <pre>
+ * InterpretedGrammar grammar = InterpretedGrammar.load(MyLanguage.INSTANCE, text);
+ * Lexer lexer = grammar.createLexerAdapter();
+ * PsiParser parser = grammar.createParserAdapter().registerFileStartRule("compilationUnit");
+ * </pre>
+ * Loaded grammars are cached by a hash of language and grammar text.
+ * Deserialized ATNs, DFAs and prediction context caches are shared by all
+ * interpreters of a grammar, the same way generated recognizers share their
+ * static tables, so warmed-up DFAs survive reloads of unchanged text.
+ * Element types are registered globally and never released, so grammars
+ * of a language reuse the token and rule types of the grammar loaded
+ * before them when their name and type or index are unchanged; editing a
+ * grammar registers types only for what was added or renamed.
+ * The ANTLR tool ({@code org.antlr:antlr4}) must be on the classpath.
+ */
+public final class InterpretedGrammar {
+    private static final int CACHE_SIZE = 16;
+    private static final Cache<HashCode, InterpretedGrammar> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+    /**
+     * Element types of the grammar last loaded for a language.
+     */
+    private static final ConcurrentMap<Language, PsiElementTypeFactory> ELEMENT_TYPES = new ConcurrentHashMap<>();
+
+    private final Language language;
+    private final String grammarFileName;
+    private final Vocabulary vocabulary;
+    private final String[] ruleNames;
+    private final ATN parserAtn;
+    private final DFA[] parserDecisionToDfa;
+    private final PredictionContextCache parserContextCache = new PredictionContextCache();
+    private final Vocabulary lexerVocabulary;
+    private final List<String> lexerRuleNames;
+    private final List<String> channelNames;
+    private final List<String> modeNames;
+    private final ATN lexerAtn;
+    private final DFA[] lexerDecisionToDfa;
+    private final PredictionContextCache lexerContextCache = new PredictionContextCache();
+    private final PsiElementTypeFactory psiElementTypeFactory;
+
+    private InterpretedGrammar(Language language, Grammar parserGrammar, LexerGrammar lexerGrammar) {
+        this.language = language;
+        grammarFileName = parserGrammar.fileName;
+        vocabulary = parserGrammar.getVocabulary();
+        ruleNames = parserGrammar.getRuleNames();
+        parserAtn = deserialize(parserGrammar.getATN());
+        parserDecisionToDfa = createDecisionToDfa(parserAtn);
+        lexerVocabulary = lexerGrammar.getVocabulary();
+        lexerRuleNames = Arrays.asList(lexerGrammar.getRuleNames());
+        channelNames = new ArrayList<>();
+        channelNames.add("DEFAULT_TOKEN_CHANNEL");
+        channelNames.add("HIDDEN");
+        channelNames.addAll(lexerGrammar.channelValueToNameList);
+        modeNames = new ArrayList<>(lexerGrammar.modes.keySet());
+        lexerAtn = deserialize(lexerGrammar.getATN());
+        lexerDecisionToDfa = createDecisionToDfa(lexerAtn);
+        psiElementTypeFactory = createPsiElementTypeFactory(language, vocabulary, ruleNames);
+    }
+
+    /**
+     * Load combined grammar (parser and lexer rules in one file).
+     *
+     * @throws IllegalArgumentException if grammar has errors
+     */
+    public static InterpretedGrammar load(Language language, String grammarText) {
+        return load(language, null, grammarText);
+    }
+
+    /**
+     * Load parser grammar together with the lexer grammar that provides
+     * its tokens. If {@code lexerGrammarText} is {@code null}, grammar must
+     * be a combined one.
+     *
+     * @throws IllegalArgumentException if any of the grammars has errors
+     */
+    public static InterpretedGrammar load(Language language, String lexerGrammarText, String parserGrammarText) {
+        HashCode key = hash(language, lexerGrammarText, parserGrammarText);
+        try {
+            return CACHE.get(key, () -> compile(language, lexerGrammarText, parserGrammarText));
+        } catch (UncheckedExecutionException | ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Drop all cached grammars.
+     */
+    public static void invalidateCache() {
+        CACHE.invalidateAll();
+    }
+
+    private static HashCode hash(Language language, String lexerGrammarText, String parserGrammarText) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putString(hasher, language.getID());
+        putString(hasher, lexerGrammarText);
+        putString(hasher, parserGrammarText);
+        return hasher.hash();
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static InterpretedGrammar compile(Language language, String lexerGrammarText, String parserGrammarText) {
+        ErrorCollector errors = new ErrorCollector();
+        LexerGrammar lexerGrammar = null;
+        if (lexerGrammarText != null) {
+            lexerGrammar = new LexerGrammar(lexerGrammarText, errors);
+            errors.check();
+        }
+        Grammar parserGrammar = new Grammar(Grammar.GRAMMAR_FROM_STRING_NAME, parserGrammarText, lexerGrammar, errors);
+        errors.check();
+        if (lexerGrammar == null) {
+            lexerGrammar = parserGrammar.implicitLexer;
+        }
+        if (lexerGrammar == null || parserGrammar.isLexer()) {
+            throw new IllegalArgumentException("Expected combined grammar or parser and lexer grammar");
+        }
+        return new InterpretedGrammar(language, parserGrammar, lexerGrammar);
+    }
+
+    private static PsiElementTypeFactory createPsiElementTypeFactory(Language language, Vocabulary vocabulary,
+                                                                     String[] ruleNames) {
+        return ELEMENT_TYPES.compute(language, (l, previous) -> PsiElementTypeFactory.builder()
+                .language(l)
+                .vocabulary(vocabulary)
+                .ruleNames(ruleNames)
+                .defaultPsiElement(AntlrPsiNode::new)
+                .reuseElementTypes(previous)
+                .build());
+    }
+
+    /**
+     * Interpreters need an ATN that went through serialization, same as
+     * in generated code; {@link Grammar#createParserInterpreter} does this
+     * on every call, here it is done once per grammar.
+     */
+    private static ATN deserialize(ATN atn) {
+        return new ATNDeserializer().deserialize(ATNSerializer.getSerializedAsChars(atn));
+    }
+
+    private static DFA[] createDecisionToDfa(ATN atn) {
+        DFA[] decisionToDfa = new DFA[atn.getNumberOfDecisions()];
+        for (int i = 0; i < decisionToDfa.length; i++) {
+            decisionToDfa[i] = new DFA(atn.getDecisionState(i), i);
+        }
+        return decisionToDfa;
+    }
+
+    /**
+     * Element types of this grammar, created once per loaded grammar and
+     * shared with earlier grammars of the language where unchanged.
+     */
+    public PsiElementTypeFactory getPsiElementTypeFactory() {
+        return psiElementTypeFactory;
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    public String[] getRuleNames() {
+        return ruleNames.clone();
+    }
+
+    /**
+     * Create new lexer interpreter. Input may be {@code null}, as for
+     * {@link AntlrLexerAdapter}.
+     */
+    public LexerInterpreter createLexer(CharStream input) {
+        LexerInterpreter lexer = new LexerInterpreter(grammarFileName, lexerVocabulary, lexerRuleNames,
+                channelNames, modeNames, lexerAtn, input);
+        lexer.setInterpreter(new LexerATNSimulator(lexer, lexerAtn, lexerDecisionToDfa, lexerContextCache));
+        return lexer;
+    }
+
+    /**
+     * Create new parser interpreter. Input may be {@code null}, as for
+     * {@link InterpretedParserAdapter}.
+     */
+    public ParserInterpreter createParser(TokenStream input) {
+        ParserInterpreter parser = new ParserInterpreter(grammarFileName, vocabulary, Arrays.asList(ruleNames),
+                parserAtn, input);
+        parser.setInterpreter(new ParserATNSimulator(parser, parserAtn, parserDecisionToDfa, parserContextCache));
+        return parser;
+    }
+
+    public AntlrLexerAdapter createLexerAdapter() {
+        return new AntlrLexerAdapter(language, createLexer(null), psiElementTypeFactory);
+    }
+
+    public InterpretedParserAdapter createParserAdapter() {
+        return new InterpretedParserAdapter(language, createParser(null), psiElementTypeFactory);
+    }
+
+    /**
+     * Collects grammar errors reported by the ANTLR tool.
+     */
+    private static final class ErrorCollector implements ANTLRToolListener {
+        private final Collection<String> errors = new ArrayList<>();
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void error(ANTLRMessage msg) {
+            errors.add(msg.getMessageTemplate(false).render());
+        }
+
+        @Override
+        public void warning(ANTLRMessage msg) {
+        }
+
+        void check() {
+            if (!errors.isEmpty()) {
+                throw new IllegalArgumentException("Grammar has errors: " + String.join("; ", errors));
+            }
+        }
+    }
+}
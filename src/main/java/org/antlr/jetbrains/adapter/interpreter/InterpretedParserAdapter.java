@@ -0,0 +1,27 @@
+package org.antlr.jetbrains.adapter.interpreter;
+
+import com.intellij.lang.Language;
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.jetbrains.adapter.parser.AntlrParserAdapter;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserInterpreter;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * Parser adapter backed by a {@link ParserInterpreter}. Interpreters have
+ * no rule methods, so start rules are entered by index.
+ *
+ * @see InterpretedGrammar#createParserAdapter()
+ */
+public class InterpretedParserAdapter extends AntlrParserAdapter {
+
+    public InterpretedParserAdapter(Language language, ParserInterpreter parser,
+                                    PsiElementTypeFactory psiElementTypeFactory) {
+        super(language, parser, psiElementTypeFactory);
+    }
+
+    @Override
+    protected ParseTree invokeStartRule(Parser parser, int ruleIndex) {
+        return ((ParserInterpreter) parser).parse(ruleIndex);
+    }
+}
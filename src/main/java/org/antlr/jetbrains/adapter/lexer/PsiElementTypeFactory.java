@@ -1,27 +1,43 @@
 package org.antlr.jetbrains.adapter.lexer;
 
 import com.google.common.base.Preconditions;
+import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
+import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.TokenSet;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.ToIntFunction;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.Vocabulary;
 import org.antlr.v4.runtime.misc.Utils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * The factory that maps all tokens and rule names into
  * IElementType objects: {@link TokenIElementType} and {@link RuleIElementType}.
+ * <p>
+ * It can also create PSI elements for composite nodes: register a
+ * constructor per rule with {@link Builder#addPsiElement} and a default
+ * one with {@link Builder#defaultPsiElement}, and delegate
+ * {@code ParserDefinition.createElement()} to {@link #createElement}.
+ * <p>
+ * Element types are registered globally and never released, so a factory
+ * that is rebuilt at runtime (e.g. for a reloaded grammar) should reuse
+ * the types of its predecessor, see {@link Builder#reuseElementTypes}.
  */
 public class PsiElementTypeFactory {
 
@@ -30,16 +46,50 @@ public class PsiElementTypeFactory {
     private final Map<String, Integer> tokenNames;
     private final Map<String, Integer> ruleNames;
     private final TokenIElementType eofIElementType;
+    /**
+     * Rules that a tree flattening policy may drop from the PSI tree.
+     */
+    private final BitSet collapsibleRules;
+    /**
+     * Rules that must always keep their PSI node, e.g. those having a
+     * custom element type.
+     */
+    private final BitSet preservedRules = new BitSet();
+    /**
+     * PSI element constructors indexed by rule index; {@code null} entries
+     * fall back to {@link #defaultPsiElement}.
+     */
+    private final Function<ASTNode, ? extends PsiElement>[] psiElements;
+    private final Function<ASTNode, ? extends PsiElement> defaultPsiElement;
 
-    private PsiElementTypeFactory(Language language, Parser parser,
-            Collection<RuleIElementType> customRuleElementTypes) {
-        Vocabulary vocabulary = parser.getVocabulary();
-        String[] ruleNames = parser.getRuleNames();
-        tokenIElementTypes = createTokenIElementTypes(language, vocabulary);
-        ruleIElementTypes = createRuleIElementTypes(language, ruleNames, customRuleElementTypes);
-        tokenNames = createTokenTypeMap(vocabulary);
-        this.ruleNames = createRuleIndexMap(ruleNames);
-        eofIElementType = new TokenIElementType(Token.EOF, "EOF", language);
+    @SuppressWarnings("unchecked")
+    private PsiElementTypeFactory(Language language, Vocabulary vocabulary, String[] ruleNames,
+            Collection<RuleIElementType> customRuleElementTypes, BitSet collapsibleRules,
+            Map<Integer, Function<ASTNode, ? extends PsiElement>> psiElements,
+            @Nullable Function<ASTNode, ? extends PsiElement> defaultPsiElement,
+            @Nullable ToIntFunction<String> tokenTypeLookup, @Nullable ToIntFunction<String> ruleIndexLookup,
+            @Nullable PsiElementTypeFactory previous) {
+        tokenIElementTypes = createTokenIElementTypes(language, vocabulary, previous);
+        ruleIElementTypes = createRuleIElementTypes(language, ruleNames, customRuleElementTypes, previous);
+        tokenNames = tokenTypeLookup != null
+                ? new LookupMap(displayNames(vocabulary), tokenTypeLookup, Token.INVALID_TYPE)
+                : createTokenTypeMap(vocabulary);
+        this.ruleNames = ruleIndexLookup != null
+                ? new LookupMap(Arrays.asList(ruleNames), ruleIndexLookup, -1)
+                : createRuleIndexMap(ruleNames);
+        eofIElementType = previous != null && previous.eofIElementType.getLanguage() == language
+                ? previous.eofIElementType
+                : new TokenIElementType(Token.EOF, "EOF", language);
+        this.collapsibleRules = (BitSet) collapsibleRules.clone();
+        for (RuleIElementType customType : customRuleElementTypes) {
+            preservedRules.set(customType.getRuleIndex());
+        }
+        this.psiElements = new Function[ruleNames.length];
+        for (Map.Entry<Integer, Function<ASTNode, ? extends PsiElement>> entry : psiElements.entrySet()) {
+            this.psiElements[entry.getKey()] = entry.getValue();
+            preservedRules.set(entry.getKey());
+        }
+        this.defaultPsiElement = defaultPsiElement;
     }
 
     public static Builder builder() {
@@ -47,7 +97,18 @@ public class PsiElementTypeFactory {
     }
 
     public static PsiElementTypeFactory create(Language language, Parser parser) {
-        return new PsiElementTypeFactory(language, parser, new ArrayList<>());
+        return create(language, parser.getVocabulary(), parser.getRuleNames());
+    }
+
+    /**
+     * Create factory from token vocabulary and rule names, without
+     * instantiating a parser (and thus deserializing its ATN). Tables
+     * generated by {@code PsiElementTypeFactoryGenerator} also supply
+     * name lookups, see their {@code builder(Language)}.
+     */
+    public static PsiElementTypeFactory create(Language language, Vocabulary vocabulary, String[] ruleNames) {
+        return new PsiElementTypeFactory(language, vocabulary, ruleNames, new ArrayList<>(), new BitSet(),
+                Collections.emptyMap(), null, null, null, null);
     }
 
     public TokenIElementType getEofElementType() {
@@ -70,15 +131,56 @@ public class PsiElementTypeFactory {
         return tokenNames;
     }
 
+    /**
+     * Returns true if a rule was registered via {@link Builder#addCollapsibleRules}
+     * and its nodes may be dropped from the PSI tree.
+     */
+    public boolean isCollapsibleRule(int ruleIndex) {
+        return collapsibleRules.get(ruleIndex) && !preservedRules.get(ruleIndex);
+    }
+
+    /**
+     * Returns true if nodes of a given rule must never be dropped from the PSI tree.
+     */
+    public boolean isPreservedRule(int ruleIndex) {
+        return preservedRules.get(ruleIndex);
+    }
+
+    /**
+     * Create PSI element for a composite node. Nodes of rules that have
+     * a constructor registered by {@link Builder#addPsiElement} are
+     * dispatched by rule index; all other nodes, including
+     * {@link TokenIElementType} roots of code fragments, get the default
+     * element.
+     *
+     * @throws IllegalStateException if the node has no registered constructor
+     *                               and no default was set
+     */
+    @NotNull
+    public PsiElement createElement(ASTNode node) {
+        IElementType elementType = node.getElementType();
+        if (elementType instanceof RuleIElementType) {
+            Function<ASTNode, ? extends PsiElement> constructor =
+                    psiElements[((RuleIElementType) elementType).getRuleIndex()];
+            if (constructor != null) {
+                return constructor.apply(node);
+            }
+        }
+        Preconditions.checkState(defaultPsiElement != null,
+                "No PSI element constructor for %s, set a default one.", elementType);
+        return defaultPsiElement.apply(node);
+    }
+
     /**
      * Get a map from token names to token types.
      */
     private Map<String, Integer> createTokenTypeMap(Vocabulary vocabulary) {
-        return IntStream.rangeClosed(0, vocabulary.getMaxTokenType())
-                .boxed()
-                .collect(Collectors.toMap(
-                        vocabulary::getDisplayName,
-                        Function.identity()));
+        int maxTokenType = vocabulary.getMaxTokenType();
+        Map<String, Integer> map = new HashMap<>(2 * (maxTokenType + 1));
+        for (int i = 0; i <= maxTokenType; i++) {
+            map.put(vocabulary.getDisplayName(i), i);
+        }
+        return map;
     }
 
     /**
@@ -88,24 +190,57 @@ public class PsiElementTypeFactory {
         return Utils.toMap(ruleNames);
     }
 
+    private static List<String> displayNames(Vocabulary vocabulary) {
+        int maxTokenType = vocabulary.getMaxTokenType();
+        List<String> names = new ArrayList<>(maxTokenType + 1);
+        for (int i = 0; i <= maxTokenType; i++) {
+            names.add(vocabulary.getDisplayName(i));
+        }
+        return names;
+    }
+
+    /**
+     * Create token element types, taking those with the same type and name
+     * from {@code previous} factory.
+     */
     @NotNull
     private List<TokenIElementType> createTokenIElementTypes(Language language,
-            Vocabulary vocabulary) {
-        return IntStream.rangeClosed(0, vocabulary.getMaxTokenType())
-                .boxed()
-                .map(i -> {
-                    String name = vocabulary.getDisplayName(i);
-                    return new TokenIElementType(i, name, language);
-                })
-                .collect(Collectors.toList());
+            Vocabulary vocabulary, @Nullable PsiElementTypeFactory previous) {
+        int maxTokenType = vocabulary.getMaxTokenType();
+        List<TokenIElementType> elementTypes = new ArrayList<>(maxTokenType + 1);
+        for (int i = 0; i <= maxTokenType; i++) {
+            String name = vocabulary.getDisplayName(i);
+            TokenIElementType elementType = previous != null && i < previous.tokenIElementTypes.size()
+                    ? previous.tokenIElementTypes.get(i)
+                    : null;
+            if (elementType == null || elementType.getLanguage() != language
+                    || !elementType.toString().equals(name)) {
+                elementType = new TokenIElementType(i, name, language);
+            }
+            elementTypes.add(elementType);
+        }
+        return elementTypes;
     }
 
+    /**
+     * Create rule element types, taking those with the same index and name
+     * from {@code previous} factory. Custom types of the previous factory
+     * are not reused.
+     */
     @NotNull
     private List<RuleIElementType> createRuleIElementTypes(Language language, String[] ruleNames,
-            Collection<RuleIElementType> customRuleElementTypes) {
-        List<RuleIElementType> elementTypes = new ArrayList<>();
+            Collection<RuleIElementType> customRuleElementTypes, @Nullable PsiElementTypeFactory previous) {
+        List<RuleIElementType> elementTypes = new ArrayList<>(ruleNames.length);
         for (int i = 0; i < ruleNames.length; i++) {
-            elementTypes.add(new RuleIElementTypeImpl(i, ruleNames[i], language));
+            RuleIElementType elementType = previous != null && i < previous.ruleIElementTypes.size()
+                    ? previous.ruleIElementTypes.get(i)
+                    : null;
+            if (elementType == null || elementType.getClass() != RuleIElementTypeImpl.class
+                    || ((IElementType) elementType).getLanguage() != language
+                    || !elementType.toString().equals(ruleNames[i])) {
+                elementType = new RuleIElementTypeImpl(i, ruleNames[i], language);
+            }
+            elementTypes.add(elementType);
         }
         for (RuleIElementType customType : customRuleElementTypes) {
             Preconditions.checkArgument(customType instanceof IElementType,
@@ -137,8 +272,15 @@ public class PsiElementTypeFactory {
     public static final class Builder {
 
         private final Collection<RuleIElementType> customElementTypes = new ArrayList<>();
+        private final BitSet collapsibleRules = new BitSet();
+        private final Map<Integer, Function<ASTNode, ? extends PsiElement>> psiElements = new HashMap<>();
+        private Function<ASTNode, ? extends PsiElement> defaultPsiElement;
+        private PsiElementTypeFactory previous;
+        private ToIntFunction<String> tokenTypeLookup;
+        private ToIntFunction<String> ruleIndexLookup;
         private Language language;
-        private Parser parser;
+        private Vocabulary vocabulary;
+        private String[] ruleNames;
 
         Builder() {
         }
@@ -148,8 +290,45 @@ public class PsiElementTypeFactory {
             return this;
         }
 
+        /**
+         * Take token vocabulary and rule names from given parser.
+         */
         public Builder parser(Parser parser) {
-            this.parser = parser;
+            this.vocabulary = parser.getVocabulary();
+            this.ruleNames = parser.getRuleNames();
+            return this;
+        }
+
+        public Builder vocabulary(Vocabulary vocabulary) {
+            this.vocabulary = vocabulary;
+            return this;
+        }
+
+        public Builder ruleNames(String... ruleNames) {
+            this.ruleNames = ruleNames;
+            return this;
+        }
+
+        /**
+         * Look up token types by display name with given function instead
+         * of a hash map, e.g. the switch-based {@code getTokenType} of
+         * tables generated by {@code PsiElementTypeFactoryGenerator}. The
+         * function must agree with the vocabulary and return
+         * {@link Token#INVALID_TYPE} for unknown names.
+         */
+        public Builder tokenTypeLookup(ToIntFunction<String> lookup) {
+            this.tokenTypeLookup = lookup;
+            return this;
+        }
+
+        /**
+         * Look up rule indexes by rule name with given function instead of
+         * a hash map, e.g. the switch-based {@code getRuleIndex} of tables
+         * generated by {@code PsiElementTypeFactoryGenerator}. The function
+         * must agree with the rule names and return -1 for unknown names.
+         */
+        public Builder ruleIndexLookup(ToIntFunction<String> lookup) {
+            this.ruleIndexLookup = lookup;
             return this;
         }
 
@@ -159,8 +338,95 @@ public class PsiElementTypeFactory {
             return this;
         }
 
+        /**
+         * Mark rules whose nodes may be dropped from the PSI tree when
+         * conversion uses a flattening policy that honours factory rules.
+         */
+        public Builder addCollapsibleRules(int... ruleIndexes) {
+            for (int ruleIndex : ruleIndexes) {
+                collapsibleRules.set(ruleIndex);
+            }
+            return this;
+        }
+
+        /**
+         * Register PSI element constructor for nodes of a given rule,
+         * e.g. {@code addPsiElement(MyParser.RULE_function, FunctionSubtree::new)}.
+         */
+        public Builder addPsiElement(int ruleIndex, Function<ASTNode, ? extends PsiElement> constructor) {
+            psiElements.put(ruleIndex, constructor);
+            return this;
+        }
+
+        /**
+         * Set PSI element constructor for nodes without a registered
+         * constructor, usually {@code AntlrPsiNode::new}. Required if
+         * {@link #createElement} is used.
+         */
+        public Builder defaultPsiElement(Function<ASTNode, ? extends PsiElement> constructor) {
+            this.defaultPsiElement = constructor;
+            return this;
+        }
+
+        /**
+         * Reuse element types of a factory built before for the same
+         * language, e.g. from an older version of a grammar: token and
+         * rule types whose type or index and name did not change are
+         * taken over, so the factory does not register new ones. May be
+         * {@code null}.
+         */
+        public Builder reuseElementTypes(@Nullable PsiElementTypeFactory previous) {
+            this.previous = previous;
+            return this;
+        }
+
         public PsiElementTypeFactory build() {
-            return new PsiElementTypeFactory(language, parser, customElementTypes);
+            Preconditions.checkState(vocabulary != null && ruleNames != null,
+                    "Either parser or vocabulary and rule names must be set.");
+            return new PsiElementTypeFactory(language, vocabulary, ruleNames, customElementTypes, collapsibleRules,
+                    psiElements, defaultPsiElement, tokenTypeLookup, ruleIndexLookup, previous);
+        }
+    }
+
+    /**
+     * Read-only name map backed by a lookup function; only iteration
+     * computes entries.
+     */
+    private static final class LookupMap extends AbstractMap<String, Integer> {
+        private final List<String> names;
+        private final ToIntFunction<String> lookup;
+        private final int missing;
+
+        LookupMap(List<String> names, ToIntFunction<String> lookup, int missing) {
+            this.names = names;
+            this.lookup = lookup;
+            this.missing = missing;
+        }
+
+        @Override
+        public Integer get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            int value = lookup.applyAsInt((String) key);
+            return value != missing ? value : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, Integer>> entrySet() {
+            Map<String, Integer> entries = new LinkedHashMap<>();
+            for (String name : names) {
+                Integer value = get(name);
+                if (value != null) {
+                    entries.put(name, value);
+                }
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
         }
     }
 }
@@ -17,14 +17,20 @@ import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.IntegerStack;
 import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 /**
  * This is how we build an intellij PSI tree from an ANTLR parse tree.
  * We let the ANTLR parser build its kind of ParseTree and then
  * we convert to a PSI tree in one go using a standard ANTLR ParseTreeListener.
+ * Use {@link #walk} rather than {@code ParseTreeWalker} to drive the
+ * conversion: it visits the tree iteratively, so deeply nested input
+ * cannot overflow the stack.
  * <p>
  * The list of SyntaxError objects are pulled from the parser and used
  * for error message highlighting (error nodes don't have the info).
@@ -38,6 +44,7 @@ public class AntlrParseTreeToPsiConverter implements ParseTreeListener {
     protected final List<RuleIElementType> ruleElementTypes;
     protected Map<RecognitionException, SyntaxError> syntaxErrors;
     protected final SyntaxErrorFormatter errorFormatter;
+    protected final TreeFlatteningPolicy flatteningPolicy;
     /**
      * Map an error's start char index (usually start of a token) to the error object.
      */
@@ -54,10 +61,21 @@ public class AntlrParseTreeToPsiConverter implements ParseTreeListener {
      * Create new instance of ANTLR parse tree to PSI converter.
      */
     public AntlrParseTreeToPsiConverter(Language language, Parser parser, PsiElementTypeFactory psiElementTypeFactory, PsiBuilder builder, SyntaxErrorFormatter errorFormatter) {
+        this(language, parser, psiElementTypeFactory, builder, errorFormatter, TreeFlatteningPolicy.NONE);
+    }
+
+    /**
+     * Create new instance of ANTLR parse tree to PSI converter that drops
+     * PSI nodes of rule invocations collapsed by given policy.
+     */
+    public AntlrParseTreeToPsiConverter(Language language, Parser parser, PsiElementTypeFactory psiElementTypeFactory,
+                                        PsiBuilder builder, SyntaxErrorFormatter errorFormatter,
+                                        TreeFlatteningPolicy flatteningPolicy) {
         this.language = language;
         this.psiElementTypeFactory = psiElementTypeFactory;
         this.builder = builder;
         this.errorFormatter = errorFormatter;
+        this.flatteningPolicy = flatteningPolicy;
 
         this.tokenElementTypes = psiElementTypeFactory.getTokenIElementTypes();
         this.ruleElementTypes = psiElementTypeFactory.getRuleIElementTypes();
@@ -96,6 +114,60 @@ public class AntlrParseTreeToPsiConverter implements ParseTreeListener {
         return ruleElementTypes;
     }
 
+    /**
+     * Walk given parse tree and fire the same listener events as
+     * {@code ParseTreeWalker.DEFAULT.walk(this, tree)} does, but using an
+     * explicit stack instead of recursion. Depth of the tree is limited
+     * only by the heap.
+     */
+    public void walk(ParseTree tree) {
+        Deque<ParseTree> parents = new ArrayDeque<>();
+        IntegerStack childIndexes = new IntegerStack();
+        ParseTree node = tree;
+        int childIndex = 0;
+        while (node != null) {
+            if (node instanceof ErrorNode) {
+                visitErrorNode((ErrorNode) node);
+            } else if (node instanceof TerminalNode) {
+                visitTerminal((TerminalNode) node);
+            } else {
+                ParserRuleContext ctx = (ParserRuleContext) ((RuleNode) node).getRuleContext();
+                enterEveryRule(ctx);
+                ctx.enterRule(this);
+            }
+
+            // descend into first child
+            if (node.getChildCount() > 0) {
+                parents.push(node);
+                childIndexes.push(childIndex);
+                node = node.getChild(0);
+                childIndex = 0;
+                continue;
+            }
+
+            // no children: exit subtrees until we find a node having next sibling
+            while (true) {
+                if (node instanceof RuleNode) {
+                    ParserRuleContext ctx = (ParserRuleContext) ((RuleNode) node).getRuleContext();
+                    ctx.exitRule(this);
+                    exitEveryRule(ctx);
+                }
+                if (node == tree || parents.isEmpty()) {
+                    node = null;
+                    break;
+                }
+                ParseTree parent = parents.peek();
+                childIndex++;
+                if (childIndex < parent.getChildCount()) {
+                    node = parent.getChild(childIndex);
+                    break;
+                }
+                node = parents.pop();
+                childIndex = childIndexes.pop();
+            }
+        }
+    }
+
     @Override
     public void visitTerminal(TerminalNode node) {
         builder.advanceLexer();
@@ -167,12 +239,18 @@ public class AntlrParseTreeToPsiConverter implements ParseTreeListener {
     @Override
     public void enterEveryRule(ParserRuleContext ctx) {
         ProgressIndicatorProvider.checkCanceled();
+        if (isCollapsed(ctx)) {
+            return;
+        }
         markers.push(getBuilder().mark());
     }
 
     @Override
     public void exitEveryRule(ParserRuleContext ctx) {
         ProgressIndicatorProvider.checkCanceled();
+        if (isCollapsed(ctx)) {
+            return;
+        }
         PsiBuilder.Marker marker = markers.pop();
         if (ctx.exception != null) {
             SyntaxError error = syntaxErrors.get(ctx.exception);
@@ -187,4 +265,14 @@ public class AntlrParseTreeToPsiConverter implements ParseTreeListener {
             marker.done((IElementType) getRuleElementTypes().get(ctx.getRuleIndex()));
         }
     }
+
+    /**
+     * Returns true if no marker should be created for given context.
+     * Must give the same answer on enter and exit of the context.
+     */
+    protected boolean isCollapsed(ParserRuleContext ctx) {
+        return ctx.getParent() != null
+                && ctx.exception == null
+                && flatteningPolicy.isCollapsible(ctx, psiElementTypeFactory);
+    }
 }
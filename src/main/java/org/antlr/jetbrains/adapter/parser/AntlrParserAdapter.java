@@ -6,24 +6,57 @@ import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiParser;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
-import org.antlr.jetbrains.adapter.lexer.PsiTokenSource;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
 import org.antlr.v4.runtime.Parser;
-import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.TokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * An adaptor that makes an ANTLR parser look like a PsiParser.
+ * <p>
+ * The start rule for a parse is chosen by the root {@link IElementType}
+ * the IDE asks for. Register start rules by name, e.g.
+ * <pre>
+ * new AntlrParserAdapter(language, parser, factory)
+ *         .registerFileStartRule("compilationUnit")
+ *         .registerStartRule(ID, "primary");
+ * </pre>
+ * Roots that are {@link RuleIElementType}s parse their own rule unless
+ * registered otherwise. Rule methods of the parser class are resolved
+ * once into cached {@link MethodHandle}s. Alternatively, override
+ * {@link #parse(Parser, IElementType)}.
  */
-public abstract class AntlrParserAdapter implements PsiParser {
+public class AntlrParserAdapter implements PsiParser {
+    /**
+     * Start rule methods of generated parser classes, indexed by rule index.
+     */
+    private static final ClassValue<MethodHandle[]> START_RULE_HANDLES = new ClassValue<MethodHandle[]>() {
+        @Override
+        protected MethodHandle[] computeValue(Class<?> type) {
+            return resolveStartRules(type);
+        }
+    };
+    private static final int NO_RULE = -1;
+
     protected final Language language;
     protected final Parser parser;
     private final PsiElementTypeFactory psiElementTypeFactory;
     private final SyntaxErrorFormatter errorFormatter;
+    private final TreeFlatteningPolicy flatteningPolicy;
+    private final MethodHandle[] startRuleHandles;
+    private final Map<IElementType, Integer> startRules = new HashMap<>();
+    private int fileStartRule = NO_RULE;
+    private int defaultStartRule = NO_RULE;
 
     public AntlrParserAdapter(Language language, Parser parser, PsiElementTypeFactory psiElementTypeFactory) {
         this(language, parser, psiElementTypeFactory, new DefaultSyntaxErrorFormatter());
@@ -35,30 +68,67 @@ public abstract class AntlrParserAdapter implements PsiParser {
      * the token stream will be set on the parser.
      */
     public AntlrParserAdapter(Language language, Parser parser, PsiElementTypeFactory psiElementTypeFactory, SyntaxErrorFormatter errorFormatter) {
+        this(language, parser, psiElementTypeFactory, errorFormatter, TreeFlatteningPolicy.NONE);
+    }
+
+    /**
+     * Create a jetbrains adaptor for an ANTLR parser object that builds
+     * a flattened PSI tree: rule invocations collapsed by the given
+     * policy get no PSI node of their own.
+     */
+    public AntlrParserAdapter(Language language, Parser parser, PsiElementTypeFactory psiElementTypeFactory,
+                              SyntaxErrorFormatter errorFormatter, TreeFlatteningPolicy flatteningPolicy) {
         this.language = language;
         this.parser = parser;
         this.psiElementTypeFactory = psiElementTypeFactory;
         this.errorFormatter = errorFormatter;
+        this.flatteningPolicy = flatteningPolicy;
+        this.startRuleHandles = START_RULE_HANDLES.get(parser.getClass());
     }
 
     public Language getLanguage() {
         return language;
     }
 
+    /**
+     * Parse given root element type starting from the given rule.
+     */
+    public AntlrParserAdapter registerStartRule(IElementType root, String ruleName) {
+        startRules.put(root, getRuleIndex(ruleName));
+        return this;
+    }
+
+    /**
+     * Parse files ({@link IFileElementType} roots) starting from the given rule.
+     */
+    public AntlrParserAdapter registerFileStartRule(String ruleName) {
+        fileStartRule = getRuleIndex(ruleName);
+        return this;
+    }
+
+    /**
+     * Parse roots without a more specific registration, e.g. token types
+     * used by rename refactoring, starting from the given rule.
+     */
+    public AntlrParserAdapter registerDefaultStartRule(String ruleName) {
+        defaultStartRule = getRuleIndex(ruleName);
+        return this;
+    }
+
     @NotNull
     @Override
     public ASTNode parse(IElementType root, PsiBuilder builder) {
         ProgressIndicatorProvider.checkCanceled();
 
-        TokenSource source = new PsiTokenSource(builder);
-        TokenStream tokens = new CommonTokenStream(source);
-        parser.setTokenStream(tokens);
-        parser.setErrorHandler(new ErrorStrategyAdapter()); // tweaks missing tokens
-        parser.removeErrorListeners();
-        parser.addErrorListener(new SyntaxErrorListener()); // trap errors
-        ParseTree parseTree = null;
+        // the token stream reads ahead, so mark before creating it
         PsiBuilder.Marker rollbackMarker = builder.mark();
+        ParseTree parseTree = null;
         try {
+            TokenStream tokens = new PsiBuilderTokenStream(builder);
+            parser.setTokenStream(tokens);
+            parser.setErrorHandler(new ErrorStrategyAdapter()); // tweaks missing tokens
+            parser.removeErrorListeners();
+            parser.addErrorListener(new SyntaxErrorListener()); // trap errors
             parseTree = parse(parser, root);
         } finally {
             rollbackMarker.rollbackTo();
@@ -69,7 +139,7 @@ public abstract class AntlrParserAdapter implements PsiParser {
         // tree (AST as they call it) when you call {@link PsiBuilder#getTreeBuilt}
         AntlrParseTreeToPsiConverter listener = createListener(parser, root, builder);
         PsiBuilder.Marker rootMarker = builder.mark();
-        ParseTreeWalker.DEFAULT.walk(listener, parseTree);
+        listener.walk(parseTree);
         while (!builder.eof()) {
             ProgressIndicatorProvider.checkCanceled();
             builder.advanceLexer();
@@ -93,9 +163,91 @@ public abstract class AntlrParserAdapter implements PsiParser {
         return builder.getTreeBuilt(); // calls the ASTFactory.createComposite() etc...
     }
 
-    protected abstract ParseTree parse(Parser parser, IElementType root);
+    /**
+     * Invoke the start rule registered for given root.
+     */
+    protected ParseTree parse(Parser parser, IElementType root) {
+        int ruleIndex = getStartRuleIndex(root);
+        if (ruleIndex == NO_RULE) {
+            throw new IllegalStateException("No start rule registered for " + root);
+        }
+        return invokeStartRule(parser, ruleIndex);
+    }
+
+    /**
+     * Returns index of the rule to start parsing of given root from,
+     * or -1 if there is none.
+     */
+    protected int getStartRuleIndex(IElementType root) {
+        Integer registered = startRules.get(root);
+        if (registered != null) {
+            return registered;
+        }
+        if (root instanceof IFileElementType && fileStartRule != NO_RULE) {
+            return fileStartRule;
+        }
+        if (root instanceof RuleIElementType) {
+            return ((RuleIElementType) root).getRuleIndex();
+        }
+        return defaultStartRule;
+    }
+
+    /**
+     * Call the generated rule method of the parser, e.g. {@code script()}.
+     * Override if parser has no such methods, like interpreters.
+     */
+    protected ParseTree invokeStartRule(Parser parser, int ruleIndex) {
+        MethodHandle handle = ruleIndex < startRuleHandles.length ? startRuleHandles[ruleIndex] : null;
+        if (handle == null) {
+            throw new IllegalStateException("No start rule method for rule "
+                    + parser.getRuleNames()[ruleIndex] + " in " + parser.getClass().getName());
+        }
+        try {
+            return (ParseTree) handle.invokeExact(parser);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int getRuleIndex(String ruleName) {
+        int ruleIndex = parser.getRuleIndex(ruleName);
+        if (ruleIndex == NO_RULE) {
+            throw new IllegalArgumentException(ruleName + " isn't a valid rule name");
+        }
+        return ruleIndex;
+    }
+
+    /**
+     * Resolve public rule methods of a generated parser class, using its
+     * static {@code ruleNames} table. Rules without such a method get
+     * {@code null}.
+     */
+    private static MethodHandle[] resolveStartRules(Class<?> parserClass) {
+        String[] ruleNames;
+        try {
+            ruleNames = (String[]) parserClass.getField("ruleNames").get(null);
+        } catch (ReflectiveOperationException | ClassCastException | NullPointerException e) {
+            return new MethodHandle[0];
+        }
+        MethodType type = MethodType.methodType(ParseTree.class, Parser.class);
+        MethodHandle[] handles = new MethodHandle[ruleNames.length];
+        for (int i = 0; i < ruleNames.length; i++) {
+            try {
+                Method method = parserClass.getMethod(ruleNames[i]);
+                if (ParserRuleContext.class.isAssignableFrom(method.getReturnType())) {
+                    handles[i] = MethodHandles.publicLookup().unreflect(method).asType(type);
+                }
+            } catch (ReflectiveOperationException e) {
+                // rule name clashes with a Java keyword or method is not public
+            }
+        }
+        return handles;
+    }
 
     protected AntlrParseTreeToPsiConverter createListener(Parser parser, IElementType root, PsiBuilder builder) {
-        return new AntlrParseTreeToPsiConverter(language, parser, psiElementTypeFactory, builder, errorFormatter);
+        return new AntlrParseTreeToPsiConverter(language, parser, psiElementTypeFactory, builder, errorFormatter,
+                flatteningPolicy);
     }
 }
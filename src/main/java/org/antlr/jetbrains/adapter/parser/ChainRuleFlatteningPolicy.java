@@ -0,0 +1,42 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Flattening policy that drops "chain" rule invocations - contexts whose
+ * only child is another rule context, like {@code expr -> primary}.
+ * The inner, more specific node is kept. Optionally, it also drops
+ * all rules registered as collapsible in {@link PsiElementTypeFactory}.
+ * <p>
+ * Rules having a custom element type are always kept.
+ */
+public class ChainRuleFlatteningPolicy implements TreeFlatteningPolicy {
+    private final boolean includeFactoryRules;
+
+    public ChainRuleFlatteningPolicy() {
+        this(false);
+    }
+
+    /**
+     * Create new instance.
+     *
+     * @param includeFactoryRules also collapse rules listed by
+     *                            {@link PsiElementTypeFactory#isCollapsibleRule}
+     */
+    public ChainRuleFlatteningPolicy(boolean includeFactoryRules) {
+        this.includeFactoryRules = includeFactoryRules;
+    }
+
+    @Override
+    public boolean isCollapsible(ParserRuleContext ctx, PsiElementTypeFactory psiElementTypeFactory) {
+        int ruleIndex = ctx.getRuleIndex();
+        if (psiElementTypeFactory.isPreservedRule(ruleIndex)) {
+            return false;
+        }
+        if (ctx.getChildCount() == 1 && ctx.getChild(0) instanceof ParserRuleContext) {
+            return true;
+        }
+        return includeFactoryRules && psiElementTypeFactory.isCollapsibleRule(ruleIndex);
+    }
+}
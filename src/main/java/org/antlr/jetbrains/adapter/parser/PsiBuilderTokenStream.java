@@ -0,0 +1,68 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import com.intellij.lang.PsiBuilder;
+import org.antlr.jetbrains.adapter.lexer.PsiTokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+
+/**
+ * Token stream that pulls tokens from a {@link PsiBuilder} on demand and
+ * keeps only a sliding window of them, sized by the parser's outstanding
+ * {@link #mark()}s. Adaptive prediction marks the stream and seeks back
+ * within the window, so parsing works as with a
+ * {@link org.antlr.v4.runtime.CommonTokenStream}, but the stream does not
+ * hold a list of all tokens of the file.
+ * <p>
+ * This does not bound memory used by tokens while parsing: the parse tree
+ * keeps every token it consumed, in its terminal nodes and as start and
+ * stop of its contexts, until it is converted to PSI. What the window
+ * saves is the stream's own buffer and the tokens that never end up in
+ * the tree, e.g. those dropped by error recovery.
+ * <p>
+ * Text of a token range is taken from {@link PsiBuilder#getOriginalText()}
+ * by character offsets, so it is available for tokens that have left the
+ * window (e.g. when reporting syntax errors). Unlike a buffered stream,
+ * such text includes whitespace and comments between tokens.
+ */
+public class PsiBuilderTokenStream extends UnbufferedTokenStream<Token> {
+    private final PsiBuilder builder;
+
+    /**
+     * Create new instance. The first token is read from the builder
+     * right away, so mark the builder for rollback before creating the stream.
+     */
+    public PsiBuilderTokenStream(PsiBuilder builder) {
+        super(new PsiTokenSource(builder));
+        this.builder = builder;
+    }
+
+    @Override
+    public String getText() {
+        return builder.getOriginalText().toString();
+    }
+
+    @Override
+    public String getText(RuleContext ctx) {
+        if (ctx instanceof ParserRuleContext) {
+            ParserRuleContext context = (ParserRuleContext) ctx;
+            return getText(context.getStart(), context.getStop());
+        }
+        return super.getText(ctx);
+    }
+
+    @Override
+    public String getText(Token start, Token stop) {
+        if (start == null || stop == null) {
+            return "";
+        }
+        int startOffset = start.getStartIndex();
+        int stopOffset = stop.getStopIndex() + 1;
+        CharSequence text = builder.getOriginalText();
+        if (startOffset < 0 || stopOffset <= startOffset || stopOffset > text.length()) {
+            return "";
+        }
+        return text.subSequence(startOffset, stopOffset).toString();
+    }
+}
@@ -0,0 +1,26 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Decides which ANTLR rule invocations get a PSI node of their own.
+ * When a context is collapsed, no {@code PsiBuilder} marker is created
+ * for it and its children are attached directly to the enclosing node.
+ *
+ * @see ChainRuleFlatteningPolicy
+ */
+public interface TreeFlatteningPolicy {
+
+    /**
+     * Keep every rule invocation; PSI tree mirrors the ANTLR parse tree.
+     */
+    TreeFlatteningPolicy NONE = (ctx, psiElementTypeFactory) -> false;
+
+    /**
+     * Returns true if no PSI node should be created for given context.
+     * Start rule context and contexts having syntax errors are never
+     * collapsed, regardless of the result.
+     */
+    boolean isCollapsible(ParserRuleContext ctx, PsiElementTypeFactory psiElementTypeFactory);
+}
@@ -3,10 +3,12 @@ package org.antlr.jetbrains.adapter.psi;
 import com.intellij.extapi.psi.ASTWrapperPsiElement;
 import com.intellij.lang.ASTNode;
 import com.intellij.psi.PsiElement;
+import com.intellij.reference.SoftReference;
 import org.antlr.jetbrains.adapter.SymtabUtils;
 import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
 import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * A base class for an internal, non-leaf "composite" PSI
@@ -29,7 +31,14 @@ import org.jetbrains.annotations.NotNull;
  * subclasses of AntlrPsiNode for each kind of declaration for use with
  * renaming, find usages, and jump to declaration.
  */
-public class AntlrPsiNode extends ASTWrapperPsiElement {
+public class AntlrPsiNode extends ASTWrapperPsiElement implements SubtreeTypes.Owner {
+    /**
+     * Filtered children; softly reachable so they can be reclaimed under
+     * memory pressure.
+     */
+    private volatile SoftReference<PsiElement[]> children;
+    private volatile SubtreeTypes subtreeTypes;
+
     public AntlrPsiNode(@NotNull ASTNode node) {
         super(node);
     }
@@ -38,11 +47,37 @@ public class AntlrPsiNode extends ASTWrapperPsiElement {
      * For some reason, default impl of this only returns rule refs
      * (composite nodes in jetbrains speak) but we want ALL children.
      * Well, we don't want hidden channel stuff.
+     * <p>
+     * The array is cached until the subtree changes and is shared between
+     * callers, so don't modify it.
      */
     @Override
     @NotNull
     public PsiElement[] getChildren() {
-        return Trees.getChildren(this);
+        PsiElement[] result = SoftReference.dereference(children);
+        if (result == null) {
+            result = Trees.getChildren(this);
+            children = new SoftReference<>(result);
+        }
+        return result;
+    }
+
+    @Nullable
+    @Override
+    public SubtreeTypes getSubtreeTypes() {
+        return subtreeTypes;
+    }
+
+    @Override
+    public void setSubtreeTypes(@Nullable SubtreeTypes types) {
+        subtreeTypes = types;
+    }
+
+    @Override
+    public void subtreeChanged() {
+        super.subtreeChanged();
+        children = null;
+        subtreeTypes = null;
     }
 
     /**
@@ -7,14 +7,22 @@ import com.intellij.psi.StubBasedPsiElement;
 import com.intellij.psi.stubs.IStubElementType;
 import com.intellij.psi.stubs.StubElement;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.reference.SoftReference;
 import org.antlr.jetbrains.adapter.SymtabUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * An equivalent of [AntlrPsiNode] for stub based PsiElements.
  */
 public abstract class AntlrStubBasedPsiNode<T extends StubElement> extends
-        StubBasedPsiElementBase<T> implements StubBasedPsiElement<T> {
+        StubBasedPsiElementBase<T> implements StubBasedPsiElement<T>, SubtreeTypes.Owner {
+    /**
+     * Filtered children and the AST node they were taken from; softly
+     * reachable so they can be reclaimed under memory pressure.
+     */
+    private volatile SoftReference<Children> children;
+    private volatile SubtreeTypes subtreeTypes;
 
     public AntlrStubBasedPsiNode(@NotNull ASTNode node) {
         super(node);
@@ -32,11 +40,39 @@ public abstract class AntlrStubBasedPsiNode<T extends StubElement> extends
      * For some reason, default impl of this only returns rule refs
      * (composite nodes in jetbrains speak) but we want ALL children.
      * Well, we don't want hidden channel stuff.
+     * <p>
+     * The array is cached until the subtree changes or the element is
+     * bound to another AST node, e.g. when its AST is loaded again, and is
+     * shared between callers, so don't modify it.
      */
     @Override
     @NotNull
     public PsiElement[] getChildren() {
-        return Trees.getChildren(this);
+        ASTNode node = getNode();
+        Children result = SoftReference.dereference(children);
+        if (result == null || result.node != node) {
+            result = new Children(node, Trees.getChildren(this));
+            children = new SoftReference<>(result);
+        }
+        return result.elements;
+    }
+
+    @Nullable
+    @Override
+    public SubtreeTypes getSubtreeTypes() {
+        return subtreeTypes;
+    }
+
+    @Override
+    public void setSubtreeTypes(@Nullable SubtreeTypes types) {
+        subtreeTypes = types;
+    }
+
+    @Override
+    public void subtreeChanged() {
+        super.subtreeChanged();
+        children = null;
+        subtreeTypes = null;
     }
 
     /**
@@ -56,4 +92,14 @@ public abstract class AntlrStubBasedPsiNode<T extends StubElement> extends
     public String toString() {
         return getClass().getSimpleName() + "(" + getNode().getElementType().toString() + ")";
     }
+
+    private static final class Children {
+        private final ASTNode node;
+        private final PsiElement[] elements;
+
+        Children(ASTNode node, PsiElement[] elements) {
+            this.node = node;
+            this.elements = elements;
+        }
+    }
 }
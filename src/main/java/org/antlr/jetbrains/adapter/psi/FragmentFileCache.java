@@ -0,0 +1,98 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.intellij.lang.Language;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.psi.PsiFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded cache of files parsed from small fragments of text, per project
+ * and language, used by {@link Trees#createFile}. Refactorings that touch
+ * many places tend to create files from the same snippets over and over;
+ * copying a cached tree is cheaper than lexing and parsing it again.
+ * <p>
+ * Files are keyed by a hash of their text, and the text is compared on
+ * every hit. Cached files are parsed before they are stored, so that
+ * their copies clone the tree instead of parsing the text again. Callers
+ * always get a {@link PsiFile#copy() copy} of the cached file, never the
+ * cached instance, so they may modify it. Caches
+ * live in the project's user data and go away with it.
+ */
+public final class FragmentFileCache {
+    /**
+     * Longer texts are parsed every time.
+     */
+    public static final int MAX_FRAGMENT_LENGTH = 1024;
+    private static final int CACHE_SIZE = 64;
+    private static final Key<ConcurrentMap<Language, FragmentFileCache>> KEY = Key.create("antlr.fragment.file.cache");
+
+    private final Project project;
+    private final Language language;
+    private final Cache<HashCode, PsiFile> files = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private FragmentFileCache(Project project, Language language) {
+        this.project = project;
+        this.language = language;
+    }
+
+    public static FragmentFileCache getInstance(Project project, Language language) {
+        ConcurrentMap<Language, FragmentFileCache> caches = project.getUserData(KEY);
+        if (caches == null) {
+            caches = ((UserDataHolderEx) project).putUserDataIfAbsent(KEY, new ConcurrentHashMap<>());
+        }
+        return caches.computeIfAbsent(language, l -> new FragmentFileCache(project, l));
+    }
+
+    /**
+     * Returns a new file parsed from given text, or {@code null} if the
+     * language has no file type.
+     */
+    @Nullable
+    public PsiFile createFile(String text) {
+        if (text.length() > MAX_FRAGMENT_LENGTH) {
+            return Trees.parseFile(project, language, text);
+        }
+        HashCode hash = Hashing.murmur3_128().hashString(text, StandardCharsets.UTF_8);
+        PsiFile file = files.getIfPresent(hash);
+        if (file != null && file.isValid() && file.textMatches(text)) {
+            hits.incrementAndGet();
+            return (PsiFile) file.copy();
+        }
+        misses.incrementAndGet();
+        file = Trees.parseFile(project, language, text);
+        if (file == null) {
+            return null;
+        }
+        // parse now: files are created lazily, and copies only share a tree
+        // that was built before copying
+        file.getNode();
+        files.put(hash, file);
+        return (PsiFile) file.copy();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void invalidate() {
+        files.invalidateAll();
+    }
+}
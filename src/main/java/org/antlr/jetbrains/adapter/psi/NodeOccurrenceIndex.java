@@ -0,0 +1,241 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiComment;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiWhiteSpace;
+import com.intellij.psi.impl.source.tree.LeafElement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Per-file index from rule index and token type to nodes, in document
+ * order. It answers "all {@code rule} nodes within this subtree" with a
+ * binary search over start offsets, in O(log n + matches) instead of a
+ * walk over the whole subtree.
+ * <p>
+ * Same nodes as {@link Trees#findAllRuleNodes} and
+ * {@link Trees#findAllTokenNodes} are indexed: composite nodes of
+ * {@link RuleIElementType}s and leaves of {@link TokenIElementType}s,
+ * skipping whitespace and comments. The index is built lazily in one
+ * pass over the AST and kept in a {@link CachedValue} of the file that
+ * depends on the file: it is dropped when the file changes, and its
+ * references to AST nodes are softly reachable, so it does not keep the
+ * AST of a file from being unloaded.
+ */
+public final class NodeOccurrenceIndex {
+    private static final Key<CachedValue<NodeOccurrenceIndex>> KEY = Key.create("antlr.node.occurrence.index");
+
+    private final Occurrences[] rules;
+    private final Occurrences[] tokens;
+
+    private NodeOccurrenceIndex(Occurrences[] rules, Occurrences[] tokens) {
+        this.rules = rules;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Returns index of given file, building it if the file changed since
+     * the index was cached.
+     */
+    public static NodeOccurrenceIndex getInstance(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, KEY,
+                () -> CachedValueProvider.Result.create(build(file.getNode()), file));
+    }
+
+    /**
+     * Returns index of the file containing given node, or {@code null}
+     * if node is not part of a file.
+     */
+    @Nullable
+    public static NodeOccurrenceIndex getInstance(ASTNode node) {
+        ASTNode root = node;
+        while (root.getTreeParent() != null) {
+            root = root.getTreeParent();
+        }
+        PsiElement file = root.getPsi();
+        return file instanceof PsiFile ? getInstance((PsiFile) file) : null;
+    }
+
+    /**
+     * Rule nodes with given index in the subtree of {@code context}
+     * (including it), in document order.
+     */
+    public Iterator<ASTNode> findRuleNodes(ASTNode context, int ruleIndex) {
+        return find(rules, ruleIndex, context);
+    }
+
+    /**
+     * Token nodes with given type in the subtree of {@code context}
+     * (including it), in document order.
+     */
+    public Iterator<ASTNode> findTokenNodes(ASTNode context, int tokenType) {
+        return find(tokens, tokenType, context);
+    }
+
+    private static Iterator<ASTNode> find(Occurrences[] table, int index, ASTNode context) {
+        if (index < 0 || index >= table.length || table[index] == null) {
+            return Collections.emptyIterator();
+        }
+        return table[index].within(context);
+    }
+
+    private static NodeOccurrenceIndex build(ASTNode root) {
+        Occurrences[] rules = new Occurrences[0];
+        Occurrences[] tokens = new Occurrences[0];
+        // preorder walk over sibling links, tracking start offsets as we go
+        ASTNode node = root;
+        int offset = 0;
+        while (node != null) {
+            IElementType type = node.getElementType();
+            ASTNode firstChild = null;
+            if (node instanceof LeafElement) {
+                if (type instanceof TokenIElementType && !isHidden(node)) {
+                    tokens = add(tokens, ((TokenIElementType) type).getAntlrTokenType(), node, offset);
+                }
+                offset += node.getTextLength();
+            } else {
+                if (type instanceof RuleIElementType) {
+                    rules = add(rules, ((RuleIElementType) type).getRuleIndex(), node, offset);
+                }
+                firstChild = node.getFirstChildNode();
+            }
+            if (firstChild != null) {
+                node = firstChild;
+                continue;
+            }
+            while (node != null && node != root && node.getTreeNext() == null) {
+                node = node.getTreeParent();
+            }
+            node = node == null || node == root ? null : node.getTreeNext();
+        }
+        for (Occurrences occurrences : rules) {
+            if (occurrences != null) {
+                occurrences.trim();
+            }
+        }
+        for (Occurrences occurrences : tokens) {
+            if (occurrences != null) {
+                occurrences.trim();
+            }
+        }
+        return new NodeOccurrenceIndex(rules, tokens);
+    }
+
+    private static boolean isHidden(ASTNode node) {
+        return node instanceof PsiWhiteSpace || node instanceof PsiComment;
+    }
+
+    private static Occurrences[] add(Occurrences[] table, int index, ASTNode node, int offset) {
+        if (index < 0) {
+            return table;
+        }
+        if (index >= table.length) {
+            table = Arrays.copyOf(table, Math.max(index + 1, 2 * table.length));
+        }
+        if (table[index] == null) {
+            table[index] = new Occurrences();
+        }
+        table[index].add(node, offset);
+        return table;
+    }
+
+    /**
+     * Nodes of one type sorted by start offset; nodes with equal offsets
+     * are in preorder.
+     */
+    private static final class Occurrences {
+        private int[] offsets = new int[4];
+        private ASTNode[] nodes = new ASTNode[4];
+        private int size;
+
+        void add(ASTNode node, int offset) {
+            if (size == nodes.length) {
+                offsets = Arrays.copyOf(offsets, 2 * size);
+                nodes = Arrays.copyOf(nodes, 2 * size);
+            }
+            offsets[size] = offset;
+            nodes[size] = node;
+            size++;
+        }
+
+        void trim() {
+            offsets = Arrays.copyOf(offsets, size);
+            nodes = Arrays.copyOf(nodes, size);
+        }
+
+        /**
+         * Nodes starting within the range of {@code context} are its
+         * descendants, except for those at either end of the range: they
+         * may also be ancestors or empty siblings, so only they get an
+         * ancestry check.
+         */
+        Iterator<ASTNode> within(ASTNode context) {
+            int start = context.getStartOffset();
+            int end = start + context.getTextLength();
+            int from = lowerBound(start);
+            int to = lowerBound(end + 1);
+            return new Iterator<ASTNode>() {
+                private int index = skip(from);
+
+                @Override
+                public boolean hasNext() {
+                    return index < to;
+                }
+
+                @Override
+                public ASTNode next() {
+                    if (index >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    ASTNode node = nodes[index];
+                    index = skip(index + 1);
+                    return node;
+                }
+
+                private int skip(int i) {
+                    while (i < to && (offsets[i] == start || offsets[i] == end)
+                            && !isAncestorOrSelf(context, nodes[i])) {
+                        i++;
+                    }
+                    return i;
+                }
+            };
+        }
+
+        private int lowerBound(int offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (offsets[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static boolean isAncestorOrSelf(ASTNode ancestor, ASTNode node) {
+            while (node != null) {
+                if (node == ancestor) {
+                    return true;
+                }
+                node = node.getTreeParent();
+            }
+            return false;
+        }
+    }
+}
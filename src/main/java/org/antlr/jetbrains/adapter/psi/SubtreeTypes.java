@@ -0,0 +1,155 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.lang.Language;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.tree.LeafPsiElement;
+import com.intellij.psi.tree.IElementType;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Rule indexes and token types that occur in a subtree, including its
+ * root. Searches for a rule or token skip subtrees whose summary does not
+ * contain it.
+ * <p>
+ * Summaries cost two small bit sets per node, so they are kept only for
+ * languages registered with {@link #track}, e.g. by the parser
+ * definition. Then
+ * {@link AntlrPsiNode} and {@link AntlrStubBasedPsiNode} keep the summary
+ * of their subtree, computed on first use, and drop it when their subtree
+ * changes.
+ */
+public final class SubtreeTypes {
+    private static final Set<Language> TRACKED_LANGUAGES = ConcurrentHashMap.newKeySet();
+
+    private final BitSet rules;
+    private final BitSet tokens;
+
+    private SubtreeTypes() {
+        rules = new BitSet();
+        tokens = new BitSet();
+    }
+
+    /**
+     * Keep summaries for nodes of given language.
+     */
+    public static void track(Language language) {
+        TRACKED_LANGUAGES.add(language);
+    }
+
+    public static boolean isTracked(Language language) {
+        return TRACKED_LANGUAGES.contains(language);
+    }
+
+    /**
+     * Returns summary of given node, computing it if needed, or
+     * {@code null} if the node does not keep one.
+     */
+    @Nullable
+    public static SubtreeTypes of(PsiElement node) {
+        if (!(node instanceof Owner) || !isTracked(node.getLanguage())) {
+            return null;
+        }
+        SubtreeTypes types = ((Owner) node).getSubtreeTypes();
+        return types != null ? types : compute(node);
+    }
+
+    /**
+     * Compute summary of a subtree, reusing summaries kept by its nodes
+     * and keeping the computed ones. Nodes are summarized in postorder,
+     * children before their parent, without recursion.
+     */
+    public static SubtreeTypes compute(PsiElement t) {
+        SubtreeTypes known = t instanceof Owner ? ((Owner) t).getSubtreeTypes() : null;
+        if (known != null) {
+            return known;
+        }
+        if (t instanceof LeafPsiElement) {
+            SubtreeTypes types = new SubtreeTypes();
+            types.add(t.getNode().getElementType(), true);
+            return types;
+        }
+        // summaries of the nodes on the path from t to the visited node
+        Deque<SubtreeTypes> path = new ArrayDeque<>();
+        SubtreeTypes[] result = new SubtreeTypes[1];
+        Trees.walk(t, new Trees.Visitor() {
+            @Override
+            public Trees.Action enter(PsiElement node) {
+                if (node instanceof LeafPsiElement) {
+                    path.peek().add(node.getNode().getElementType(), true);
+                    return Trees.Action.SKIP_CHILDREN;
+                }
+                SubtreeTypes types = node instanceof Owner ? ((Owner) node).getSubtreeTypes() : null;
+                if (types != null) {
+                    path.push(types);
+                    return Trees.Action.SKIP_CHILDREN;
+                }
+                types = new SubtreeTypes();
+                types.add(node.getNode().getElementType(), false);
+                path.push(types);
+                return Trees.Action.CONTINUE;
+            }
+
+            @Override
+            public Trees.Action exit(PsiElement node) {
+                if (node instanceof LeafPsiElement) {
+                    return Trees.Action.CONTINUE;
+                }
+                SubtreeTypes types = path.pop();
+                if (node instanceof Owner) {
+                    ((Owner) node).setSubtreeTypes(types);
+                }
+                SubtreeTypes parent = path.peek();
+                if (parent != null) {
+                    parent.rules.or(types.rules);
+                    parent.tokens.or(types.tokens);
+                } else {
+                    result[0] = types;
+                }
+                return Trees.Action.CONTINUE;
+            }
+        });
+        return result[0];
+    }
+
+    private void add(IElementType elementType, boolean leaf) {
+        if (leaf) {
+            if (elementType instanceof TokenIElementType) {
+                int tokenType = ((TokenIElementType) elementType).getAntlrTokenType();
+                if (tokenType >= 0) {
+                    tokens.set(tokenType);
+                }
+            }
+        } else if (elementType instanceof RuleIElementType) {
+            rules.set(((RuleIElementType) elementType).getRuleIndex());
+        }
+    }
+
+    public boolean containsRule(int ruleIndex) {
+        return ruleIndex >= 0 && rules.get(ruleIndex);
+    }
+
+    public boolean containsToken(int tokenType) {
+        return tokenType >= 0 && tokens.get(tokenType);
+    }
+
+    /**
+     * PSI node that keeps the summary of its subtree.
+     */
+    public interface Owner extends PsiElement {
+        /**
+         * Returns summary kept by this node, or {@code null} if it was not
+         * computed since the subtree last changed.
+         */
+        @Nullable
+        SubtreeTypes getSubtreeTypes();
+
+        void setSubtreeTypes(@Nullable SubtreeTypes types);
+    }
+}
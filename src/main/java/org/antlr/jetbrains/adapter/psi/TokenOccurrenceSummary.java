@@ -0,0 +1,76 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import java.util.BitSet;
+import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
+
+/**
+ * Set of ANTLR token types that occur in a file. It is computed by running
+ * only the lexer over the file text, so it is much cheaper than parsing,
+ * and lets project-wide searches skip files that cannot contain a match.
+ * The summary is cached on the file until its modification stamp changes.
+ */
+public final class TokenOccurrenceSummary {
+    private static final Key<TokenOccurrenceSummary> KEY = Key.create("antlr.token.occurrence.summary");
+
+    private final long modificationStamp;
+    private final BitSet tokenTypes;
+
+    private TokenOccurrenceSummary(long modificationStamp, BitSet tokenTypes) {
+        this.modificationStamp = modificationStamp;
+        this.tokenTypes = tokenTypes;
+    }
+
+    /**
+     * Returns summary of given file, lexing it if the file changed since
+     * the summary was cached.
+     */
+    public static TokenOccurrenceSummary getInstance(PsiFile file) {
+        long stamp = file.getModificationStamp();
+        TokenOccurrenceSummary summary = file.getUserData(KEY);
+        if (summary == null || summary.modificationStamp != stamp) {
+            summary = new TokenOccurrenceSummary(stamp, lex(file));
+            file.putUserData(KEY, summary);
+        }
+        return summary;
+    }
+
+    private static BitSet lex(PsiFile file) {
+        BitSet tokenTypes = new BitSet();
+        ParserDefinition definition = LanguageParserDefinitions.INSTANCE.forLanguage(file.getLanguage());
+        if (definition == null) {
+            return tokenTypes;
+        }
+        Lexer lexer = definition.createLexer(file.getProject());
+        lexer.start(file.getViewProvider().getContents());
+        IElementType type;
+        while ((type = lexer.getTokenType()) != null) {
+            if (type instanceof TokenIElementType) {
+                int tokenType = ((TokenIElementType) type).getAntlrTokenType();
+                if (tokenType >= 0) {
+                    tokenTypes.set(tokenType);
+                }
+            }
+            lexer.advance();
+        }
+        return tokenTypes;
+    }
+
+    public boolean contains(int tokenType) {
+        return tokenType >= 0 && tokenTypes.get(tokenType);
+    }
+
+    /**
+     * Returns true if all given token types occur in the file.
+     */
+    public boolean containsAll(BitSet types) {
+        BitSet missing = (BitSet) types.clone();
+        missing.andNot(tokenTypes);
+        return missing.isEmpty();
+    }
+}
@@ -31,22 +31,31 @@
 
 package org.antlr.jetbrains.adapter.psi;
 
+import com.intellij.lang.ASTFactory;
 import com.intellij.lang.Language;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lexer.Lexer;
 import com.intellij.openapi.application.Result;
 import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileTypes.LanguageFileType;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiComment;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.PsiManager;
 import com.intellij.psi.PsiWhiteSpace;
 import com.intellij.psi.impl.PsiFileFactoryImpl;
+import com.intellij.psi.impl.source.DummyHolder;
+import com.intellij.psi.impl.source.DummyHolderFactory;
+import com.intellij.psi.impl.source.tree.LeafElement;
 import com.intellij.psi.impl.source.tree.LeafPsiElement;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.PsiTreeUtil;
-import com.intellij.psi.util.PsiUtilCore;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -56,6 +65,7 @@ import java.util.Map;
 import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
 import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class Trees {
     private Trees() {
@@ -72,9 +82,10 @@ public class Trees {
         List<PsiElement> ancestors = new ArrayList<>();
         t = t.getParent();
         while (t != null) {
-            ancestors.add(0, t); // insert at start
+            ancestors.add(t);
             t = t.getParent();
         }
+        Collections.reverse(ancestors);
         return ancestors;
     }
 
@@ -133,26 +144,26 @@ public class Trees {
 
     private static void findAllNodesImpl(PsiElement t, int index, boolean findTokens,
                                          List<? super PsiElement> nodes) {
-        IElementType elType = t.getNode().getElementType();
-
-        // check this node (the root) first
-        if (findTokens && t instanceof LeafPsiElement) {
-            if (elType instanceof TokenIElementType) {
-                if (((TokenIElementType) elType).getAntlrTokenType() == index) {
-                    nodes.add(t);
-                }
+        walk(t, node -> {
+            // skip subtrees known not to contain the type
+            SubtreeTypes types = SubtreeTypes.of(node);
+            if (types != null && !(findTokens ? types.containsToken(index) : types.containsRule(index))) {
+                return Action.SKIP_CHILDREN;
             }
-        } else if (!findTokens && !(t instanceof LeafPsiElement)) {
-            if (elType instanceof RuleIElementType) {
-                if (((RuleIElementType) elType).getRuleIndex() == index) {
-                    nodes.add(t);
+            IElementType elType = node.getNode().getElementType();
+            if (findTokens && node instanceof LeafPsiElement) {
+                if (elType instanceof TokenIElementType
+                        && ((TokenIElementType) elType).getAntlrTokenType() == index) {
+                    nodes.add(node);
+                }
+            } else if (!findTokens && !(node instanceof LeafPsiElement)) {
+                if (elType instanceof RuleIElementType
+                        && ((RuleIElementType) elType).getRuleIndex() == index) {
+                    nodes.add(node);
                 }
             }
-        }
-        // check children
-        for (PsiElement c : t.getChildren()) {
-            findAllNodesImpl(c, index, findTokens, nodes);
-        }
+            return Action.CONTINUE;
+        });
     }
 
     /**
@@ -160,11 +171,10 @@ public class Trees {
      */
     public static List<PsiElement> getDescendants(PsiElement t) {
         List<PsiElement> nodes = new ArrayList<>();
-        nodes.add(t);
-
-        for (PsiElement c : t.getChildren()) {
-            nodes.addAll(getDescendants(c));
-        }
+        walk(t, node -> {
+            nodes.add(node);
+            return Action.CONTINUE;
+        });
         return nodes;
     }
 
@@ -176,69 +186,172 @@ public class Trees {
         if (t == null) {
             return PsiElement.EMPTY_ARRAY;
         }
-
-        PsiElement psiChild = t.getFirstChild();
-        if (psiChild == null) {
+        // count first so that only the result is allocated
+        int count = 0;
+        for (PsiElement c = getFirstChild(t); c != null; c = getNextSibling(c)) {
+            count++;
+        }
+        if (count == 0) {
             return PsiElement.EMPTY_ARRAY;
         }
+        PsiElement[] children = new PsiElement[count];
+        int i = 0;
+        for (PsiElement c = getFirstChild(t); c != null; c = getNextSibling(c)) {
+            children[i++] = c;
+        }
+        return children;
+    }
 
-        List<PsiElement> result = new ArrayList<>();
-        while (psiChild != null) {
-            if (!(psiChild instanceof PsiComment)
-                    && !(psiChild instanceof PsiWhiteSpace)) {
-                result.add(psiChild);
+    /**
+     * Returns first non-WS, non-Comment child of t, or {@code null}.
+     */
+    @Nullable
+    public static PsiElement getFirstChild(PsiElement t) {
+        PsiElement c = t.getFirstChild();
+        return c != null && isHidden(c) ? getNextSibling(c) : c;
+    }
+
+    /**
+     * Returns next non-WS, non-Comment sibling of t, or {@code null}.
+     */
+    @Nullable
+    public static PsiElement getNextSibling(PsiElement t) {
+        PsiElement c = t.getNextSibling();
+        while (c != null && isHidden(c)) {
+            c = c.getNextSibling();
+        }
+        return c;
+    }
+
+    private static boolean isHidden(PsiElement t) {
+        return t instanceof PsiComment || t instanceof PsiWhiteSpace;
+    }
+
+    /**
+     * Walk subtree of t (including t) depth-first, skipping WS and
+     * Comment nodes. The visitor is called when entering a node, before
+     * its children, and when leaving it; its result on entering may skip
+     * the children, and either result may stop the walk. The walk
+     * follows sibling and parent links, so it allocates nothing and does
+     * not recurse.
+     *
+     * @return false if the visitor stopped the walk
+     */
+    public static boolean walk(PsiElement t, Visitor visitor) {
+        PsiElement node = t;
+        while (true) {
+            Action action = visitor.enter(node);
+            if (action == Action.STOP) {
+                return false;
+            }
+            PsiElement child = action == Action.SKIP_CHILDREN ? null : getFirstChild(node);
+            if (child != null) {
+                node = child;
+                continue;
+            }
+            // leave node, and its ancestors until one has a next sibling
+            while (true) {
+                if (visitor.exit(node) == Action.STOP) {
+                    return false;
+                }
+                if (node == t) {
+                    return true;
+                }
+                PsiElement next = getNextSibling(node);
+                if (next != null) {
+                    node = next;
+                    break;
+                }
+                node = node.getParent();
             }
-            psiChild = psiChild.getNextSibling();
         }
-        return PsiUtilCore.toPsiElementArray(result);
     }
 
     /**
      * Find smallest subtree of t enclosing range startCharIndex..stopCharIndex
-     * inclusively using postorder traversal.  Recursive depth-first-search.
+     * inclusively. Children do not overlap, so at most one child of a node
+     * encloses the range; descend into it, found by binary search over
+     * child offsets, and return the deepest rule node on the way.
      */
     public static PsiElement getRootOfSubtreeEnclosingRegion(PsiElement t,
                                                              int startCharIndex, // inclusive
                                                              int stopCharIndex) { // inclusive
-        for (PsiElement c : t.getChildren()) {
-            PsiElement sub = getRootOfSubtreeEnclosingRegion(c, startCharIndex, stopCharIndex);
-            if (sub != null) {
-                return sub;
+        TextRange r = t.getTextRange();
+        // is range fully contained in t?  Note: jetbrains uses exclusive right end (use < not <=)
+        if (startCharIndex < r.getStartOffset() || stopCharIndex >= r.getEndOffset()) {
+            return null;
+        }
+        PsiElement result = null;
+        PsiElement node = t;
+        int nodeStart = r.getStartOffset();
+        while (node != null) {
+            if (node.getNode().getElementType() instanceof RuleIElementType) {
+                result = node;
             }
+            PsiElement[] children = node.getChildren();
+            PsiElement child = findChildAt(children, startCharIndex - nodeStart);
+            if (child == null) {
+                break;
+            }
+            int childStart = nodeStart + child.getStartOffsetInParent();
+            if (stopCharIndex >= childStart + child.getTextLength()) {
+                break;
+            }
+            node = child;
+            nodeStart = childStart;
         }
-        IElementType elementType = t.getNode().getElementType();
-        if (elementType instanceof RuleIElementType) {
-            TextRange r = t.getNode().getTextRange();
-            // is range fully contained in t?  Note: jetbrains uses exclusive right end (use < not <=)
-            if (startCharIndex >= r.getStartOffset() && stopCharIndex < r.getEndOffset()) {
-                return t;
+        return result;
+    }
+
+    /**
+     * Returns last child starting at or before given offset relative to
+     * the parent, or {@code null}.
+     */
+    @Nullable
+    private static PsiElement findChildAt(PsiElement[] children, int offsetInParent) {
+        int low = 0;
+        int high = children.length - 1;
+        PsiElement found = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (children[mid].getStartOffsetInParent() <= offsetInParent) {
+                found = children[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
         }
-        return null;
+        return found;
     }
 
     /**
      * Return first node satisfying the pred among descendants. Depth-first order. Test includes t itself.
      */
     public static PsiElement findNodeSuchThat(PsiElement t, Predicate<PsiElement> pred) {
-        if (pred.test(t)) {
-            return t;
-        }
-
-        for (PsiElement c : t.getChildren()) {
-            PsiElement u = findNodeSuchThat(c, pred);
-            if (u != null) {
-                return u;
+        PsiElement[] result = new PsiElement[1];
+        walk(t, node -> {
+            if (pred.test(node)) {
+                result[0] = node;
+                return Action.STOP;
             }
-        }
-        return null;
+            return Action.CONTINUE;
+        });
+        return result[0];
     }
 
     /**
-     * Create leaf note from text.
+     * Create leaf note from text. If {@code type} is a token type and the
+     * text lexes to exactly one token of it, the leaf is built from the
+     * lexer's result without parsing.
      */
     public static PsiElement createLeafFromText(Project project, Language language, PsiElement context,
                                                 String text, IElementType type) {
+        if (type instanceof TokenIElementType && isSingleToken(project, language, text, type)) {
+            DummyHolder holder = DummyHolderFactory.createHolder(PsiManager.getInstance(project), language, context);
+            LeafElement leaf = ASTFactory.leaf(type, holder.getCharTable().intern(text));
+            holder.getTreeElement().rawAddChildren(leaf);
+            return leaf.getPsi();
+        }
         PsiFileFactoryImpl factory = (PsiFileFactoryImpl) PsiFileFactory.getInstance(project);
         PsiElement el = factory.createElementFromText(text, language, type, context);
         if (el == null) {
@@ -248,28 +361,126 @@ public class Trees {
         // start rule depends on root passed in
     }
 
+    private static boolean isSingleToken(Project project, Language language, String text, IElementType type) {
+        ParserDefinition definition = LanguageParserDefinitions.INSTANCE.forLanguage(language);
+        if (definition == null || text.isEmpty()) {
+            return false;
+        }
+        Lexer lexer = definition.createLexer(project);
+        lexer.start(text);
+        if (lexer.getTokenType() != type || lexer.getTokenEnd() != text.length()) {
+            return false;
+        }
+        lexer.advance();
+        return lexer.getTokenType() == null;
+    }
+
     /**
-     * Replace content of a given file with given text.
+     * Replace content of a given file with given text. Only the changed
+     * part of the text is replaced, so PSI outside of it survives: the
+     * smallest rule subtree around the change is replaced by the same rule
+     * parsed from its new text, if the parser adapter has a start rule for
+     * it and the text parses without errors; otherwise the change is made
+     * in the document and the file is reparsed incrementally.
      */
     public static void replacePsiFileFromText(final Project project, Language language, final PsiFile psiFile, String text) {
-        final PsiFile newPsiFile = createFile(project, language, text);
-        if (newPsiFile == null) {
-            return;
-        }
         WriteCommandAction setTextAction = new WriteCommandAction(project) {
             @Override
             protected void run(@NotNull Result result) throws Throwable {
-                psiFile.deleteChildRange(psiFile.getFirstChild(), psiFile.getLastChild());
-                psiFile.addRange(newPsiFile.getFirstChild(), newPsiFile.getLastChild());
+                PsiDocumentManager documentManager = PsiDocumentManager.getInstance(project);
+                Document document = documentManager.getDocument(psiFile);
+                if (document != null) {
+                    documentManager.commitDocument(document);
+                }
+                String oldText = psiFile.getText();
+                int prefix = 0;
+                int max = Math.min(oldText.length(), text.length());
+                while (prefix < max && oldText.charAt(prefix) == text.charAt(prefix)) {
+                    prefix++;
+                }
+                int suffix = 0;
+                while (suffix < max - prefix
+                        && oldText.charAt(oldText.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+                    suffix++;
+                }
+                int oldEnd = oldText.length() - suffix;
+                String replacement = text.substring(prefix, text.length() - suffix);
+                if (prefix == oldEnd && replacement.isEmpty()) {
+                    return;
+                }
+                if (replaceSubtree(project, language, psiFile, prefix, oldEnd, replacement)) {
+                    return;
+                }
+                if (document != null) {
+                    document.replaceString(prefix, oldEnd, replacement);
+                    documentManager.commitDocument(document);
+                    return;
+                }
+                // no document to reparse incrementally, e.g. a non-physical file
+                PsiFile newPsiFile = createFile(project, language, text);
+                if (newPsiFile != null) {
+                    psiFile.deleteChildRange(psiFile.getFirstChild(), psiFile.getLastChild());
+                    psiFile.addRange(newPsiFile.getFirstChild(), newPsiFile.getLastChild());
+                }
             }
         };
         setTextAction.execute();
     }
 
     /**
-     * Create a PsiFile from a given text.
+     * Replace text range start..end (exclusive) of the file by parsing the
+     * new text of the smallest rule subtree around it. The subtree must
+     * also contain one unchanged char on either side, so tokens outside of
+     * it are not affected by the change, and its rule must consume all of
+     * the new text without errors.
+     *
+     * @return false if no subtree could be replaced
+     */
+    private static boolean replaceSubtree(Project project, Language language, PsiFile psiFile,
+                                          int start, int end, String replacement) {
+        if (start == 0 || end >= psiFile.getTextLength()) {
+            return false;
+        }
+        PsiElement oldSubtree = getRootOfSubtreeEnclosingRegion(psiFile, start - 1, end);
+        if (oldSubtree == null) {
+            return false;
+        }
+        String oldSubtreeText = oldSubtree.getText();
+        int subtreeStart = oldSubtree.getTextRange().getStartOffset();
+        String newSubtreeText = oldSubtreeText.substring(0, start - subtreeStart)
+                + replacement
+                + oldSubtreeText.substring(end - subtreeStart);
+        IElementType type = oldSubtree.getNode().getElementType();
+        PsiFileFactoryImpl factory = (PsiFileFactoryImpl) PsiFileFactory.getInstance(project);
+        // the parser adapter wraps the start rule's subtree into a root of the
+        // same type and attaches tokens the rule did not consume to the root
+        PsiElement root = factory.createElementFromText(newSubtreeText, language, type, oldSubtree.getParent());
+        if (root == null || PsiTreeUtil.hasErrorElements(root)) {
+            return false;
+        }
+        PsiElement newSubtree = root.getFirstChild();
+        if (newSubtree == null
+                || newSubtree != root.getLastChild()
+                || newSubtree.getNode().getElementType() != type
+                || !newSubtree.textMatches(newSubtreeText)) {
+            return false;
+        }
+        oldSubtree.replace(newSubtree);
+        return true;
+    }
+
+    /**
+     * Create a PsiFile from a given text. Files from small fragments are
+     * copied from a {@link FragmentFileCache} instead of parsed again.
      */
     public static PsiFile createFile(Project project, Language language, String text) {
+        return FragmentFileCache.getInstance(project, language).createFile(text);
+    }
+
+    /**
+     * Parse a PsiFile from a given text, bypassing the cache.
+     */
+    static PsiFile parseFile(Project project, Language language, String text) {
         LanguageFileType ftype = language.getAssociatedFileType();
         if (ftype == null) {
             return null;
@@ -283,4 +494,35 @@ public class Trees {
     public interface Predicate<T> {
         boolean test(T t);
     }
+
+    /**
+     * What {@link #walk} does after a {@link Visitor} call.
+     */
+    public enum Action {
+        CONTINUE,
+        /**
+         * Don't visit children of the entered node; same as
+         * {@link #CONTINUE} when leaving a node.
+         */
+        SKIP_CHILDREN,
+        STOP
+    }
+
+    /**
+     * Callbacks of {@link #walk}.
+     */
+    public interface Visitor {
+        /**
+         * Called before children of the node are visited (preorder).
+         */
+        Action enter(PsiElement node);
+
+        /**
+         * Called after children of the node were visited or skipped
+         * (postorder).
+         */
+        default Action exit(PsiElement node) {
+            return Action.CONTINUE;
+        }
+    }
 }
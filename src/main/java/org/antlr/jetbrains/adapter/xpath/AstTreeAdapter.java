@@ -0,0 +1,110 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiComment;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiWhiteSpace;
+import com.intellij.psi.impl.source.tree.LeafElement;
+import com.intellij.psi.tree.IElementType;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.antlr.jetbrains.adapter.psi.NodeOccurrenceIndex;
+
+/**
+ * {@link ASTNode} tree model. Children are followed through sibling links
+ * and no PSI is created: whitespace and comment leaves are recognized by
+ * their class, as leaf AST nodes are PSI elements themselves.
+ * {@code //rule} and {@code //TOKEN} steps use the file's
+ * {@link NodeOccurrenceIndex}.
+ */
+public class AstTreeAdapter implements XPathTreeAdapter<ASTNode> {
+    public static final AstTreeAdapter INSTANCE = new AstTreeAdapter();
+
+    protected AstTreeAdapter() {
+    }
+
+    @Override
+    public Iterator<ASTNode> children(ASTNode node) {
+        return new Iterator<ASTNode>() {
+            private ASTNode next = skipHidden(node.getFirstChildNode());
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ASTNode next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                ASTNode child = next;
+                next = skipHidden(child.getTreeNext());
+                return child;
+            }
+        };
+    }
+
+    @Override
+    public IElementType getElementType(ASTNode node) {
+        return node.getElementType();
+    }
+
+    @Override
+    public boolean isLeaf(ASTNode node) {
+        return node instanceof LeafElement;
+    }
+
+    @Override
+    public boolean textMatches(ASTNode node, CharSequence text) {
+        // leaves return their text without copying
+        return node.getTextLength() == text.length() && StringUtil.equals(node.getChars(), text);
+    }
+
+    /**
+     * Names are known to PSI only, so this creates PSI for the node.
+     */
+    @Override
+    public boolean nameMatches(ASTNode node, CharSequence name) {
+        PsiElement psi = node.getPsi();
+        return psi != null && PsiTreeAdapter.INSTANCE.nameMatches(psi, name);
+    }
+
+    @Override
+    public boolean hasChildren(ASTNode node) {
+        return skipHidden(node.getFirstChildNode()) != null;
+    }
+
+    @Override
+    public Iterator<ASTNode> findAllRuleNodes(ASTNode node, int ruleIndex) {
+        NodeOccurrenceIndex index = NodeOccurrenceIndex.getInstance(node);
+        if (index == null) {
+            return XPathTreeAdapter.super.findAllRuleNodes(node, ruleIndex);
+        }
+        return index.findRuleNodes(node, ruleIndex);
+    }
+
+    @Override
+    public Iterator<ASTNode> findAllTokenNodes(ASTNode node, int tokenType) {
+        NodeOccurrenceIndex index = NodeOccurrenceIndex.getInstance(node);
+        if (index == null) {
+            return XPathTreeAdapter.super.findAllTokenNodes(node, tokenType);
+        }
+        return index.findTokenNodes(node, tokenType);
+    }
+
+    /**
+     * Returns true for whitespace and comment nodes.
+     */
+    protected boolean isHidden(ASTNode node) {
+        return node instanceof PsiWhiteSpace || node instanceof PsiComment;
+    }
+
+    private ASTNode skipHidden(ASTNode node) {
+        while (node != null && isHidden(node)) {
+            node = node.getTreeNext();
+        }
+        return node;
+    }
+}
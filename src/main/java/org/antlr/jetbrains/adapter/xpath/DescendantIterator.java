@@ -0,0 +1,49 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy preorder iteration over a subtree, root included.
+ *
+ * @param <N> node type
+ */
+class DescendantIterator<N> implements Iterator<N> {
+    private final XPathTreeAdapter<N> tree;
+    private final Deque<Iterator<N>> children = new ArrayDeque<>();
+    private N next;
+
+    DescendantIterator(XPathTreeAdapter<N> tree, N root) {
+        this.tree = tree;
+        this.next = root;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public N next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        N current = next;
+        children.push(tree.children(current));
+        next = advance();
+        return current;
+    }
+
+    private N advance() {
+        while (!children.isEmpty()) {
+            Iterator<N> it = children.peek();
+            if (it.hasNext()) {
+                return it.next();
+            }
+            children.pop();
+        }
+        return null;
+    }
+}
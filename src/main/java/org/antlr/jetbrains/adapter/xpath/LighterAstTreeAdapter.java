@@ -0,0 +1,111 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.Iterators;
+import com.intellij.lang.LighterAST;
+import com.intellij.lang.LighterASTNode;
+import com.intellij.lang.LighterASTTokenNode;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.impl.source.tree.LightTreeUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import java.util.Iterator;
+
+/**
+ * {@link LighterAST} tree model, for evaluating paths in indexers and stub
+ * builders over the light tree. Light nodes carry no PSI classes, so
+ * whitespace and comments are recognized by token type, and so are names:
+ * the name of a composite node is the text of its first child token of an
+ * identifier type, like {@link org.antlr.jetbrains.adapter.psi.IdentifierDefSubtree}
+ * does. Without identifier types, nodes have no name.
+ */
+public class LighterAstTreeAdapter implements XPathTreeAdapter<LighterASTNode> {
+    private final LighterAST tree;
+    private final TokenSet hiddenTokens;
+    private final TokenSet identifierTokens;
+
+    /**
+     * Create new instance whose nodes have no name.
+     *
+     * @param tree         light tree to evaluate over
+     * @param hiddenTokens whitespace and comment token types to skip
+     */
+    public LighterAstTreeAdapter(LighterAST tree, TokenSet hiddenTokens) {
+        this(tree, hiddenTokens, TokenSet.EMPTY);
+    }
+
+    /**
+     * Create new instance.
+     *
+     * @param tree             light tree to evaluate over
+     * @param hiddenTokens     whitespace and comment token types to skip
+     * @param identifierTokens token types whose text names their parent
+     */
+    public LighterAstTreeAdapter(LighterAST tree, TokenSet hiddenTokens, TokenSet identifierTokens) {
+        this.tree = tree;
+        this.hiddenTokens = TokenSet.orSet(hiddenTokens, TokenSet.create(TokenType.WHITE_SPACE));
+        this.identifierTokens = identifierTokens;
+    }
+
+    /**
+     * Create new instance skipping whitespace and comment tokens of the
+     * given parser definition.
+     */
+    public LighterAstTreeAdapter(LighterAST tree, ParserDefinition parserDefinition) {
+        this(tree, parserDefinition, TokenSet.EMPTY);
+    }
+
+    /**
+     * Create new instance skipping whitespace and comment tokens of the
+     * given parser definition, naming nodes by their identifier tokens.
+     */
+    public LighterAstTreeAdapter(LighterAST tree, ParserDefinition parserDefinition, TokenSet identifierTokens) {
+        this(tree, TokenSet.orSet(parserDefinition.getWhitespaceTokens(), parserDefinition.getCommentTokens()),
+                identifierTokens);
+    }
+
+    public LighterAST getTree() {
+        return tree;
+    }
+
+    @Override
+    public Iterator<LighterASTNode> children(LighterASTNode node) {
+        return Iterators.filter(tree.getChildren(node).iterator(),
+                child -> !hiddenTokens.contains(child.getTokenType()));
+    }
+
+    @Override
+    public IElementType getElementType(LighterASTNode node) {
+        return node.getTokenType();
+    }
+
+    @Override
+    public boolean isLeaf(LighterASTNode node) {
+        return node instanceof LighterASTTokenNode;
+    }
+
+    @Override
+    public boolean textMatches(LighterASTNode node, CharSequence text) {
+        if (node.getEndOffset() - node.getStartOffset() != text.length()) {
+            return false;
+        }
+        CharSequence nodeText = node instanceof LighterASTTokenNode
+                ? ((LighterASTTokenNode) node).getText()
+                : LightTreeUtil.toFilteredString(tree, node, null);
+        return StringUtil.equals(nodeText, text);
+    }
+
+    @Override
+    public boolean nameMatches(LighterASTNode node, CharSequence name) {
+        if (isLeaf(node)) {
+            return false;
+        }
+        for (LighterASTNode child : tree.getChildren(node)) {
+            if (child instanceof LighterASTTokenNode && identifierTokens.contains(child.getTokenType())) {
+                return StringUtil.equals(((LighterASTTokenNode) child).getText(), name);
+            }
+        }
+        return false;
+    }
+}
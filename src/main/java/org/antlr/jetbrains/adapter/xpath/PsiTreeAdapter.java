@@ -0,0 +1,122 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.Iterators;
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiNameIdentifierOwner;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.psi.impl.source.tree.LeafPsiElement;
+import com.intellij.psi.tree.IElementType;
+import java.util.Iterator;
+import org.antlr.jetbrains.adapter.psi.IdentifierDefSubtree;
+import org.antlr.jetbrains.adapter.psi.NodeOccurrenceIndex;
+import org.antlr.jetbrains.adapter.psi.SubtreeTypes;
+import org.antlr.jetbrains.adapter.psi.Trees;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * PSI tree model. Children come from {@link PsiElement#getChildren()},
+ * which ANTLR PSI nodes implement without whitespace and comments.
+ * {@code //rule} and {@code //TOKEN} steps are answered from the file's
+ * {@link NodeOccurrenceIndex}.
+ */
+public class PsiTreeAdapter implements XPathTreeAdapter<PsiElement> {
+    public static final PsiTreeAdapter INSTANCE = new PsiTreeAdapter();
+
+    protected PsiTreeAdapter() {
+    }
+
+    @Override
+    public Iterator<PsiElement> children(PsiElement node) {
+        return Iterators.forArray(node.getChildren());
+    }
+
+    @Override
+    public IElementType getElementType(PsiElement node) {
+        return node.getNode().getElementType();
+    }
+
+    @Override
+    public boolean isLeaf(PsiElement node) {
+        return node instanceof LeafPsiElement;
+    }
+
+    @Override
+    public boolean textMatches(PsiElement node, CharSequence text) {
+        return node.getTextLength() == text.length() && node.textMatches(text);
+    }
+
+    /**
+     * Name is the text of the name identifier of a
+     * {@link PsiNameIdentifierOwner}, e.g. {@link IdentifierDefSubtree},
+     * or the name of other {@link PsiNamedElement}s.
+     */
+    @Override
+    public boolean nameMatches(PsiElement node, CharSequence name) {
+        if (node instanceof PsiNameIdentifierOwner) {
+            PsiElement identifier = ((PsiNameIdentifierOwner) node).getNameIdentifier();
+            return identifier != null && textMatches(identifier, name);
+        }
+        if (node instanceof PsiNamedElement) {
+            return StringUtil.equals(((PsiNamedElement) node).getName(), name);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasChildren(PsiElement node) {
+        return node.getChildren().length > 0;
+    }
+
+    @Override
+    public boolean mayContainRule(PsiElement node, int ruleIndex) {
+        SubtreeTypes types = SubtreeTypes.of(node);
+        return types == null || types.containsRule(ruleIndex);
+    }
+
+    @Override
+    public boolean mayContainToken(PsiElement node, int tokenType) {
+        SubtreeTypes types = SubtreeTypes.of(node);
+        return types == null || types.containsToken(tokenType);
+    }
+
+    /**
+     * Nodes outside of files have no index; {@link Trees} searches them,
+     * skipping subtrees without the rule.
+     */
+    @Override
+    public Iterator<PsiElement> findAllRuleNodes(PsiElement node, int ruleIndex) {
+        NodeOccurrenceIndex index = getIndex(node);
+        if (index == null) {
+            return Trees.findAllRuleNodes(node, ruleIndex).iterator();
+        }
+        return Iterators.transform(index.findRuleNodes(node.getNode(), ruleIndex), ASTNode::getPsi);
+    }
+
+    @Override
+    public Iterator<PsiElement> findAllTokenNodes(PsiElement node, int tokenType) {
+        NodeOccurrenceIndex index = getIndex(node);
+        if (index == null) {
+            return Trees.findAllTokenNodes(node, tokenType).iterator();
+        }
+        return Iterators.transform(index.findTokenNodes(node.getNode(), tokenType), ASTNode::getPsi);
+    }
+
+    @Override
+    public PsiElement getRoot(PsiElement node) {
+        if (node instanceof PsiFile) {
+            // file's own children include whitespace and comments
+            PsiElement[] children = Trees.getChildren(node);
+            return children.length > 0 ? children[0] : null;
+        }
+        return node;
+    }
+
+    @Nullable
+    private static NodeOccurrenceIndex getIndex(PsiElement node) {
+        PsiFile file = node.getContainingFile();
+        return file != null && node.getNode() != null ? NodeOccurrenceIndex.getInstance(file) : null;
+    }
+}
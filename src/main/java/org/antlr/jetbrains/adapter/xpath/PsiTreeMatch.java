@@ -0,0 +1,55 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.ListMultimap;
+import com.intellij.psi.PsiElement;
+import java.util.List;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Successful match of a {@link PsiTreePattern} against a PSI subtree.
+ * Nodes matched by tags are available by tag label and by rule or token
+ * name, like in ANTLR's {@link org.antlr.v4.runtime.tree.pattern.ParseTreeMatch}.
+ */
+public class PsiTreeMatch {
+    private final PsiElement tree;
+    private final ListMultimap<String, PsiElement> labels;
+
+    PsiTreeMatch(PsiElement tree, ListMultimap<String, PsiElement> labels) {
+        this.tree = tree;
+        this.labels = labels;
+    }
+
+    /**
+     * Returns root of the matched subtree.
+     */
+    public PsiElement getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns last node matched by a tag with given label or name, or
+     * {@code null}.
+     */
+    @Nullable
+    public PsiElement get(String label) {
+        List<PsiElement> nodes = labels.get(label);
+        return nodes.isEmpty() ? null : nodes.get(nodes.size() - 1);
+    }
+
+    /**
+     * Returns all nodes matched by tags with given label or name, in
+     * document order.
+     */
+    public List<PsiElement> getAll(String label) {
+        return labels.get(label);
+    }
+
+    public ListMultimap<String, PsiElement> getLabels() {
+        return labels;
+    }
+
+    @Override
+    public String toString() {
+        return "Match " + tree + " " + labels;
+    }
+}
@@ -0,0 +1,301 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.tree.LeafPsiElement;
+import com.intellij.psi.tree.IElementType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
+import org.antlr.jetbrains.adapter.parser.TreeFlatteningPolicy;
+import org.antlr.jetbrains.adapter.psi.Trees;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.pattern.ParseTreePattern;
+import org.antlr.v4.runtime.tree.pattern.ParseTreePatternMatcher;
+import org.antlr.v4.runtime.tree.pattern.RuleTagToken;
+import org.antlr.v4.runtime.tree.pattern.TokenTagToken;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Structural pattern like {@code <ID> = <expr>;} matched against PSI, in
+ * the syntax of ANTLR's {@link ParseTreePattern}:
+ * <pre>
+ * PsiTreePattern pattern = PsiTreePattern.compile(factory, lexer, parser, "&lt;ID&gt; = &lt;expr&gt;", "statement");
+ * for (PsiTreeMatch match : pattern.findAll(file)) {
+ *     PsiElement id = match.get("ID");
+ * }
+ * </pre>
+ * The pattern is parsed once with ANTLR's pattern matcher and its tree is
+ * compiled into a preorder list of instructions: a rule node with a given
+ * number of children, a token with given type and text, or a rule or token
+ * tag. Matching runs over the instructions and the PSI subtree side by
+ * side, checking element types and token text, and fails on the first
+ * difference. {@link #findAll} only tries nodes of the pattern's rule,
+ * which it finds with {@link XPath}.
+ * <p>
+ * When PSI trees are built with a {@link TreeFlatteningPolicy}, give the
+ * same policy to {@link #compile}, so the pattern tree is flattened the
+ * same way. Tagged subtrees of a flattened grammar may have been replaced
+ * by their only child, so rule tags then match any rule node.
+ */
+public class PsiTreePattern {
+    private static final int RULE = 0;
+    private static final int RULE_TAG = 1;
+    private static final int TOKEN = 2;
+    private static final int TOKEN_TAG = 3;
+    private static final int INSTRUCTION_SIZE = 3;
+
+    private final String pattern;
+    private final XPath candidates;
+    private final boolean anyRuleForTags;
+    /**
+     * Instructions of {@link #INSTRUCTION_SIZE} ints: opcode, rule index
+     * or token type, and child count of a rule, text index of a token or
+     * label index of a tag.
+     */
+    private final int[] code;
+    /**
+     * Token texts, and names followed by labels (or {@code null}) of tags.
+     */
+    private final String[] strings;
+
+    private PsiTreePattern(String pattern, XPath candidates, boolean anyRuleForTags, int[] code, String[] strings) {
+        this.pattern = pattern;
+        this.candidates = candidates;
+        this.anyRuleForTags = anyRuleForTags;
+        this.code = code;
+        this.strings = strings;
+    }
+
+    public static PsiTreePattern compile(PsiElementTypeFactory psiElementTypeFactory, Lexer lexer, Parser parser,
+                                         String pattern, String ruleName) {
+        return compile(psiElementTypeFactory, lexer, parser, pattern, ruleName, TreeFlatteningPolicy.NONE);
+    }
+
+    /**
+     * Parse pattern as {@code ruleName} with the grammar of given lexer and
+     * parser and compile it.
+     *
+     * @throws IllegalArgumentException if rule is unknown or pattern is invalid
+     */
+    public static PsiTreePattern compile(PsiElementTypeFactory psiElementTypeFactory, Lexer lexer, Parser parser,
+                                         String pattern, String ruleName, TreeFlatteningPolicy flatteningPolicy) {
+        Integer ruleIndex = psiElementTypeFactory.getRuleNameToIndexMap().get(ruleName);
+        if (ruleIndex == null || ruleIndex == -1) {
+            throw new IllegalArgumentException(ruleName + " isn't a valid rule name");
+        }
+        ParseTreePattern parsed;
+        try {
+            parsed = new ParseTreePatternMatcher(lexer, parser).compile(pattern, ruleIndex);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid pattern '" + pattern + "' for rule " + ruleName, e);
+        }
+        Compiler compiler = new Compiler(psiElementTypeFactory, flatteningPolicy);
+        compiler.compile(parsed.getPatternTree());
+        XPath candidates = XPath.compile(psiElementTypeFactory, "//" + ruleName);
+        return new PsiTreePattern(pattern, candidates, flatteningPolicy != TreeFlatteningPolicy.NONE,
+                compiler.code(), compiler.strings.toArray(new String[0]));
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean matches(PsiElement tree) {
+        return match(tree) != null;
+    }
+
+    /**
+     * Match pattern against subtree rooted at {@code tree}.
+     *
+     * @return the match, or {@code null} if subtree does not match
+     */
+    @Nullable
+    public PsiTreeMatch match(PsiElement tree) {
+        ListMultimap<String, PsiElement> labels = ArrayListMultimap.create();
+        return match(tree, 0, labels) == code.length ? new PsiTreeMatch(tree, labels) : null;
+    }
+
+    /**
+     * Find all subtrees of {@code tree} (including it) that match the
+     * pattern, in document order.
+     */
+    public List<PsiTreeMatch> findAll(PsiElement tree) {
+        List<PsiTreeMatch> matches = new ArrayList<>();
+        Iterator<PsiElement> it = candidates.iterator(tree);
+        while (it.hasNext()) {
+            PsiTreeMatch match = match(it.next());
+            if (match != null) {
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Match node against instructions starting at {@code pc}.
+     *
+     * @return index of the instruction after the node's subtree, or -1
+     */
+    private int match(PsiElement node, int pc, ListMultimap<String, PsiElement> labels) {
+        int op = code[pc];
+        int type = code[pc + 1];
+        int arg = code[pc + 2];
+        IElementType elementType = node.getNode().getElementType();
+        boolean leaf = node instanceof LeafPsiElement;
+        switch (op) {
+            case RULE: {
+                if (leaf || !isRule(elementType, type)) {
+                    return -1;
+                }
+                PsiElement[] children = Trees.getChildren(node);
+                if (children.length != arg) {
+                    return -1;
+                }
+                pc += INSTRUCTION_SIZE;
+                for (PsiElement child : children) {
+                    pc = match(child, pc, labels);
+                    if (pc < 0) {
+                        return -1;
+                    }
+                }
+                return pc;
+            }
+            case RULE_TAG:
+                if (leaf || !(anyRuleForTags ? elementType instanceof RuleIElementType : isRule(elementType, type))) {
+                    return -1;
+                }
+                addLabels(labels, arg, node);
+                return pc + INSTRUCTION_SIZE;
+            case TOKEN:
+                if (!leaf || !isToken(elementType, type) || !node.textMatches(strings[arg])) {
+                    return -1;
+                }
+                return pc + INSTRUCTION_SIZE;
+            case TOKEN_TAG:
+                if (!leaf || !isToken(elementType, type)) {
+                    return -1;
+                }
+                addLabels(labels, arg, node);
+                return pc + INSTRUCTION_SIZE;
+            default:
+                throw new IllegalStateException("Unknown instruction " + op);
+        }
+    }
+
+    private void addLabels(ListMultimap<String, PsiElement> labels, int index, PsiElement node) {
+        labels.put(strings[index], node);
+        if (strings[index + 1] != null) {
+            labels.put(strings[index + 1], node);
+        }
+    }
+
+    private static boolean isRule(IElementType elementType, int ruleIndex) {
+        return elementType instanceof RuleIElementType && ((RuleIElementType) elementType).getRuleIndex() == ruleIndex;
+    }
+
+    private static boolean isToken(IElementType elementType, int tokenType) {
+        return elementType instanceof TokenIElementType
+                && ((TokenIElementType) elementType).getAntlrTokenType() == tokenType;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    /**
+     * Translates a pattern parse tree into instructions, in preorder.
+     */
+    private static final class Compiler {
+        private final PsiElementTypeFactory psiElementTypeFactory;
+        private final TreeFlatteningPolicy flatteningPolicy;
+        private final List<Integer> code = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+
+        Compiler(PsiElementTypeFactory psiElementTypeFactory, TreeFlatteningPolicy flatteningPolicy) {
+            this.psiElementTypeFactory = psiElementTypeFactory;
+            this.flatteningPolicy = flatteningPolicy;
+        }
+
+        int[] code() {
+            return code.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        void compile(ParseTree tree) {
+            RuleTagToken ruleTag = getRuleTag(tree);
+            if (ruleTag != null) {
+                emit(RULE_TAG, ruleTag.getRuleIndex(), strings.size());
+                strings.add(ruleTag.getRuleName());
+                strings.add(ruleTag.getLabel());
+            } else if (tree instanceof ParserRuleContext) {
+                List<ParseTree> children = new ArrayList<>();
+                addChildren((ParserRuleContext) tree, children);
+                emit(RULE, ((ParserRuleContext) tree).getRuleIndex(), children.size());
+                for (ParseTree child : children) {
+                    compile(child);
+                }
+            } else if (tree instanceof TerminalNode) {
+                Token token = ((TerminalNode) tree).getSymbol();
+                if (token instanceof TokenTagToken) {
+                    TokenTagToken tag = (TokenTagToken) token;
+                    emit(TOKEN_TAG, tag.getType(), strings.size());
+                    strings.add(tag.getTokenName());
+                    strings.add(tag.getLabel());
+                } else {
+                    emit(TOKEN, token.getType(), strings.size());
+                    strings.add(token.getText());
+                }
+            } else {
+                throw new IllegalArgumentException("Unexpected node in pattern tree: " + tree);
+            }
+        }
+
+        /**
+         * Children that get PSI nodes; children of collapsed contexts are
+         * attached to their parent, like when PSI is built.
+         */
+        private void addChildren(ParserRuleContext ctx, List<ParseTree> children) {
+            for (int i = 0; i < ctx.getChildCount(); i++) {
+                ParseTree child = ctx.getChild(i);
+                if (child instanceof ParserRuleContext && getRuleTag(child) == null
+                        && flatteningPolicy.isCollapsible((ParserRuleContext) child, psiElementTypeFactory)) {
+                    addChildren((ParserRuleContext) child, children);
+                } else {
+                    children.add(child);
+                }
+            }
+        }
+
+        private void emit(int op, int type, int arg) {
+            code.add(op);
+            code.add(type);
+            code.add(arg);
+        }
+
+        /**
+         * Rule tags are parsed as a rule node with a single
+         * {@link RuleTagToken} child.
+         */
+        @Nullable
+        private static RuleTagToken getRuleTag(ParseTree tree) {
+            if (tree instanceof RuleNode && tree.getChildCount() == 1 && tree.getChild(0) instanceof TerminalNode) {
+                Token token = ((TerminalNode) tree.getChild(0)).getSymbol();
+                if (token instanceof RuleTagToken) {
+                    return (RuleTagToken) token;
+                }
+            }
+            return null;
+        }
+    }
+}
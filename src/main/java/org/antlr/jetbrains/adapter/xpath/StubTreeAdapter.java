@@ -0,0 +1,92 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.StubBasedPsiElement;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.stubs.NamedStub;
+import com.intellij.psi.stubs.PsiFileStub;
+import com.intellij.psi.stubs.StubElement;
+import com.intellij.psi.stubs.StubTree;
+import com.intellij.psi.tree.IElementType;
+import java.util.Iterator;
+import java.util.List;
+import org.antlr.jetbrains.adapter.lexer.RuleIStubElementTypeImpl;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stub tree model. A stub tree holds only nodes of
+ * {@link RuleIStubElementTypeImpl stub element types}, and the parent of a
+ * stub is the closest ancestor that has a stub, so only {@code //rule}
+ * steps over such rules give the same results as over the AST.
+ * {@code [@name=...]} predicates compare the name of a {@link NamedStub}.
+ * Stubs have no text, so text predicates compare the text of the stub's
+ * element, which loads the AST.
+ * <p>
+ * {@link XPath#evaluate(PsiElement)} uses this model by itself when the
+ * path allows it and the file's AST is not loaded.
+ */
+public class StubTreeAdapter implements XPathTreeAdapter<StubElement<?>> {
+    public static final StubTreeAdapter INSTANCE = new StubTreeAdapter();
+
+    protected StubTreeAdapter() {
+    }
+
+    /**
+     * Returns stub of a file or stub based element if its AST is not
+     * loaded, or {@code null}.
+     */
+    @Nullable
+    public static StubElement<?> getStub(PsiElement element) {
+        if (element instanceof PsiFileImpl) {
+            StubTree tree = ((PsiFileImpl) element).getStubTree();
+            return tree != null ? tree.getRoot() : null;
+        }
+        if (element instanceof StubBasedPsiElement) {
+            return ((StubBasedPsiElement<?>) element).getStub();
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<StubElement<?>> children(StubElement<?> node) {
+        return ((List<StubElement<?>>) (List<?>) node.getChildrenStubs()).iterator();
+    }
+
+    @Override
+    public IElementType getElementType(StubElement<?> node) {
+        if (node instanceof PsiFileStub) {
+            return ((PsiFileStub<?>) node).getType();
+        }
+        return node.getStubType();
+    }
+
+    /**
+     * Stubs are never tokens.
+     */
+    @Override
+    public boolean isLeaf(StubElement<?> node) {
+        return false;
+    }
+
+    @Override
+    public boolean textMatches(StubElement<?> node, CharSequence text) {
+        PsiElement element = node.getPsi();
+        return element != null && PsiTreeAdapter.INSTANCE.textMatches(element, text);
+    }
+
+    @Override
+    public boolean nameMatches(StubElement<?> node, CharSequence name) {
+        return node instanceof NamedStub && StringUtil.equals(((NamedStub<?>) node).getName(), name);
+    }
+
+    /**
+     * The file stub is the root; its children are not the root of ANTLR's
+     * tree, but the outermost stubs in it.
+     */
+    @Override
+    public StubElement<?> getRoot(StubElement<?> node) {
+        return node;
+    }
+}
@@ -31,29 +31,42 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.lang.Language;
-import com.intellij.lang.parser.GeneratedParserUtilBase;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import com.intellij.openapi.util.Key;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiReference;
-import com.intellij.psi.impl.source.tree.CompositePsiElement;
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.psi.stubs.StubElement;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
 import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
-import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
-import org.antlr.jetbrains.adapter.psi.Trees;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CodePointCharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.LexerNoViableAltException;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.xpath.XPathLexer;
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Represent a subset of XPath XML path syntax for use in identifying nodes in
@@ -66,15 +79,20 @@ import org.jetbrains.annotations.NotNull;
  * <p>
  * <p>
  * The basic interface is
- * {@link XPath#findAll}{@code (tree, pathString, parser)}.
+ * {@link XPath#findAll}{@code (factory, tree, pathString)}.
  * But that is just shorthand for:</p>
  * <p>
  * <pre>
- * {@link XPath} p = new {@link XPath#XPath XPath}(parser, pathString);
- * return p.{@link #evaluate evaluate}(tree);
+ * {@link XPath} p = {@link XPath#compile XPath.compile}(factory, pathString);
+ * return p.{@link #evaluate(PsiElement) evaluate}(tree);
  * </pre>
  * <p>
  * <p>
+ * Compiled paths are immutable and can be shared between threads.
+ * {@link #compile} keeps a bounded cache of them per factory, so constant
+ * paths are lexed only once.</p>
+ * <p>
+ * <p>
  * See {@code org.antlr.v4.test.TestXPath} for descriptions. In short, this
  * allows operators:</p>
  * <p>
@@ -96,38 +114,202 @@ import org.jetbrains.annotations.NotNull;
  * </dl>
  * <p>
  * <p>
- * Whitespace is not allowed.</p>
+ * Path elements may be followed by {@link XPathPredicate predicates} such as
+ * {@code [.='x']} or {@code [@name=$name]}; variables are bound with
+ * {@link #bind}.</p>
+ * <p>
+ * <p>
+ * Whitespace is not allowed outside of predicates.</p>
  */
 public class XPath {
     public static final String WILDCARD = "*"; // word not operator/separator
     public static final String NOT = "!";       // word for invert operator
 
-    private final List<TokenIElementType> tokenElementTypes;
-    private final List<RuleIElementType> ruleElementTypes;
+    private static final int CACHE_SIZE_PER_FACTORY = 256;
+    /**
+     * Compiled paths per factory; factories are compared by identity and
+     * their caches go away together with them.
+     */
+    private static final Cache<PsiElementTypeFactory, Cache<String, XPath>> CACHE = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+    /**
+     * Cached results on root elements, by {@link #resultsKey}.
+     */
+    private static final Key<CachedValue<ConcurrentMap<String, List<PsiElement>>>> RESULTS =
+            Key.create("antlr.xpath.results");
+
     private final Map<String, Integer> ruleIndexes;
     private final Map<String, Integer> tokenTypes;
 
-    private String path;
+    private final String path;
+    private final XPathElement[] elements;
+    private final Map<String, ? extends CharSequence> variables;
+    /**
+     * Automaton for paths with nested {@code //} steps, or {@code null}.
+     */
+    @Nullable
+    private final XPathAutomaton automaton;
+    /**
+     * True if path can be evaluated over stub trees.
+     */
+    private final boolean stubBacked;
+    /**
+     * Path and bound values, which identify results of the path in the
+     * results cache.
+     */
+    private final String resultsKey;
 
     private XPath(PsiElementTypeFactory psiElementTypeFactory, String path) {
         this.path = path;
-        this.tokenElementTypes = psiElementTypeFactory.getTokenIElementTypes();
-        this.ruleElementTypes = psiElementTypeFactory.getRuleIElementTypes();
         this.ruleIndexes = psiElementTypeFactory.getRuleNameToIndexMap();
         this.tokenTypes = psiElementTypeFactory.getTokenNameToTypeMap();
+        this.elements = split(path);
+        this.variables = Collections.emptyMap();
+        this.automaton = plan();
+        this.stubBacked = isStubBacked(psiElementTypeFactory.getRuleIElementTypes());
+        this.resultsKey = path;
+    }
+
+    private XPath(XPath xpath, Map<String, ? extends CharSequence> variables) {
+        this.path = xpath.path;
+        this.ruleIndexes = xpath.ruleIndexes;
+        this.tokenTypes = xpath.tokenTypes;
+        this.elements = xpath.elements;
+        this.variables = variables;
+        this.automaton = xpath.automaton != null ? xpath.automaton.bind(variables) : null;
+        this.stubBacked = xpath.stubBacked;
+        this.resultsKey = path + " " + new TreeMap<>(variables);
+    }
+
+    /**
+     * Choose how to evaluate the path. Steps are evaluated one after the
+     * other, which lets {@code //rule} steps use the occurrence index, unless
+     * a {@code //} step follows an earlier {@code //} step: then matches of
+     * the earlier step may be nested, and evaluating the later step from each
+     * of them would walk the same subtrees again. Such paths run as an
+     * automaton in a single pass over the tree instead.
+     */
+    @Nullable
+    private XPathAutomaton plan() {
+        boolean anywhere = false;
+        for (XPathElement element : elements) {
+            if (element.isAnywhere()) {
+                if (anywhere) {
+                    return XPathAutomaton.compile(Collections.singletonList(this));
+                }
+                anywhere = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stub trees only contain nodes of stub element types, and the parent
+     * of a stub is its closest ancestor with a stub. Only paths of
+     * {@code //rule} steps over such rules, with no predicates other than
+     * {@code @name}, select the same nodes there as in the AST.
+     */
+    private boolean isStubBacked(List<RuleIElementType> ruleElementTypes) {
+        for (XPathElement element : elements) {
+            if (!(element instanceof XPathRuleAnywhereElement) || element.invert) {
+                return false;
+            }
+            int ruleIndex = ((XPathRuleAnywhereElement) element).ruleIndex;
+            if (ruleIndex >= ruleElementTypes.size()
+                    || !(ruleElementTypes.get(ruleIndex) instanceof IStubElementType)) {
+                return false;
+            }
+            for (XPathPredicate predicate : element.predicates) {
+                if (!predicate.isNameTest()) {
+                    return false;
+                }
+            }
+        }
+        return elements.length > 0;
+    }
+
+    /**
+     * Compile XPath expression, or return a cached compiled instance.
+     *
+     * @throws IllegalArgumentException if path is invalid
+     */
+    public static XPath compile(PsiElementTypeFactory psiElementTypeFactory, String path) {
+        Cache<String, XPath> paths = CACHE.getIfPresent(psiElementTypeFactory);
+        if (paths == null) {
+            paths = CacheBuilder.newBuilder()
+                    .maximumSize(CACHE_SIZE_PER_FACTORY)
+                    .build();
+            Cache<String, XPath> existing = CACHE.asMap().putIfAbsent(psiElementTypeFactory, paths);
+            if (existing != null) {
+                paths = existing;
+            }
+        }
+        XPath xpath = paths.getIfPresent(path);
+        if (xpath == null) {
+            // compiling twice in a race is harmless, both results are equal
+            xpath = new XPath(psiElementTypeFactory, path);
+            paths.put(path, xpath);
+        }
+        return xpath;
     }
 
     /**
      * Find all elements in a give tree according to XPath expression.
      */
     public static Collection<? extends PsiElement> findAll(PsiElementTypeFactory psiElementTypeFactory, PsiElement tree, String xpath) {
-        // TODO: check for invalid token/rule names, bad syntax
-        XPath p = new XPath(psiElementTypeFactory, xpath);
-        XPathElement[] elements = p.split(xpath);
-        return p.evaluate(tree, elements);
+        return compile(psiElementTypeFactory, xpath).evaluate(tree);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    XPathElement[] getElements() {
+        return elements;
+    }
+
+    Map<String, ? extends CharSequence> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns ANTLR token types that a tree must contain for this path to
+     * match anything in it, i.e. types of its non-inverted token steps.
+     * Searches use them to skip files without parsing them.
+     */
+    public BitSet getRequiredTokenTypes() {
+        BitSet types = new BitSet();
+        for (XPathElement element : elements) {
+            if (element.invert) {
+                continue;
+            }
+            if (element instanceof XPathTokenElement) {
+                types.set(((XPathTokenElement) element).tokenType);
+            } else if (element instanceof XPathTokenAnywhereElement) {
+                types.set(((XPathTokenAnywhereElement) element).tokenType);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Return a copy of this path with given values for {@code $variables}
+     * of its predicates. The compiled path is shared, so binding is cheap.
+     */
+    public XPath bind(Map<String, ? extends CharSequence> variables) {
+        return new XPath(this, Collections.unmodifiableMap(new HashMap<>(variables)));
+    }
+
+    public XPath bind(String variable, CharSequence value) {
+        return new XPath(this, Collections.singletonMap(variable, value));
     }
 
     private XPathElement[] split(String path) {
+        // ANTLR's XPath lexer knows no predicates; cut them out first and
+        // remember them by the offset of the word they follow
+        Map<Integer, List<XPathPredicate>> predicates = new HashMap<>();
+        path = extractPredicates(path, predicates);
         CodePointCharStream in = CharStreams.fromString(path);
         XPathLexer lexer = new XPathLexer(in) {
             public void recover(LexerNoViableAltException e) {
@@ -166,6 +348,7 @@ public class XPath {
                     boolean anywhere = el.getType() == XPathLexer.ANYWHERE;
                     XPathElement pathElement = getXPathElement(next, anywhere);
                     pathElement.invert = invert;
+                    setPredicates(pathElement, next, predicates);
                     elements.add(pathElement);
                     i++;
                     break;
@@ -173,7 +356,9 @@ public class XPath {
                 case XPathLexer.TOKEN_REF:
                 case XPathLexer.RULE_REF:
                 case XPathLexer.WILDCARD:
-                    elements.add(getXPathElement(el, false));
+                    XPathElement word = getXPathElement(el, false);
+                    setPredicates(word, el, predicates);
+                    elements.add(word);
                     i++;
                     break;
 
@@ -184,9 +369,65 @@ public class XPath {
                     throw new IllegalArgumentException("Unknowth path element " + el);
             }
         }
+        if (!predicates.isEmpty()) {
+            throw new IllegalArgumentException("Predicate must follow a path element in path '" + this.path + "'");
+        }
         return elements.toArray(new XPathElement[0]);
     }
 
+    /**
+     * Remove {@code [...]} predicates from path. Parsed predicates are put
+     * into given map by index of the last char before them in the returned
+     * path.
+     */
+    private String extractPredicates(String path, Map<Integer, List<XPathPredicate>> predicates) {
+        StringBuilder stripped = new StringBuilder(path.length());
+        boolean quoted = false;
+        int i = 0;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '[' && !quoted) {
+                int end = findPredicateEnd(path, i + 1);
+                if (stripped.length() == 0) {
+                    throw new IllegalArgumentException("Predicate must follow a path element in path '" + path + "'");
+                }
+                predicates.computeIfAbsent(stripped.length() - 1, k -> new ArrayList<>())
+                        .add(XPathPredicate.parse(path.substring(i + 1, end)));
+                i = end + 1;
+                continue;
+            }
+            stripped.append(c);
+            i++;
+        }
+        return stripped.toString();
+    }
+
+    private int findPredicateEnd(String path, int start) {
+        char quote = 0;
+        for (int i = start; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ']') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Missing ] in path '" + path + "'");
+    }
+
+    private void setPredicates(XPathElement element, Token word, Map<Integer, List<XPathPredicate>> predicates) {
+        List<XPathPredicate> list = predicates.remove(word.getStopIndex());
+        if (list != null) {
+            element.predicates = list.toArray(new XPathPredicate[0]);
+        }
+    }
+
     /**
      * Convert word like {@code *} or {@code ID} or {@code expr} to a path
      * element. {@code anywhere} is {@code true} if {@code //} precedes the
@@ -233,63 +474,234 @@ public class XPath {
      * path. The root {@code /} is relative to the node passed to
      * {@link #evaluate}.
      */
+    public Collection<? extends PsiElement> evaluate(PsiElement t) {
+        List<PsiElement> nodes = new ArrayList<>();
+        iterator(t).forEachRemaining(nodes::add);
+        return nodes;
+    }
+
+    /**
+     * Evaluate given path elements starting at {@code t} as root.
+     */
     public Collection<? extends PsiElement> evaluate(PsiElement t, XPathElement[] elements) {
-        if (t == null) {
-            return Collections.emptyList();
+        List<PsiElement> nodes = new ArrayList<>();
+        pathIterator(PsiTreeAdapter.INSTANCE, t, elements).forEachRemaining(nodes::add);
+        return nodes;
+    }
+
+    /**
+     * Evaluate path over any tree model, e.g. {@link AstTreeAdapter} to
+     * avoid creating PSI.
+     */
+    public <N> List<N> evaluate(XPathTreeAdapter<N> tree, N t) {
+        List<N> nodes = new ArrayList<>();
+        iterator(tree, t).forEachRemaining(nodes::add);
+        return nodes;
+    }
+
+    /**
+     * Same as {@link #evaluate(PsiElement)}, but results are cached on
+     * {@code t} until any PSI in the project changes. Use this for queries
+     * repeated on an unchanged tree, e.g. resolving every reference of a
+     * file against the same scope. The result list is shared and must not
+     * be modified.
+     * <p>
+     * Results of all paths evaluated on {@code t} are kept in one map, by
+     * path and bound values, so cache only a bounded set of paths, e.g.
+     * constants, not paths bound to ever different values.
+     */
+    public List<PsiElement> evaluateCached(PsiElement t) {
+        ConcurrentMap<String, List<PsiElement>> results = CachedValuesManager.getCachedValue(t, RESULTS,
+                () -> CachedValueProvider.Result.create(new ConcurrentHashMap<>(),
+                        PsiModificationTracker.MODIFICATION_COUNT));
+        List<PsiElement> nodes = results.get(resultsKey);
+        if (nodes == null) {
+            nodes = Collections.unmodifiableList(new ArrayList<>(evaluate(t)));
+            List<PsiElement> existing = results.putIfAbsent(resultsKey, nodes);
+            if (existing != null) {
+                nodes = existing;
+            }
         }
+        return nodes;
+    }
 
-        if (t instanceof PsiFile) {
-            // the PSI fileroot exists above start rule in ANTLR grammar and hence above ANTLR's parse tree root
-            // drop t down to top of ANTLR's tree. Should be only child if we ignore WS, Comments
-            t = Trees.getChildren(t)[0];
+    /**
+     * Lazily iterate over nodes that satisfy the path, in the order
+     * {@link #evaluate} returns them: document order for paths with nested
+     * {@code //} steps, otherwise in order of the matches of each step. Nothing is computed ahead of the
+     * returned node, so callers may stop at any time.
+     */
+    public Iterator<PsiElement> iterator(PsiElement t) {
+        // if file is not parsed and all steps are in its stub tree, don't parse it
+        StubElement<?> stub = stubBacked && t != null ? StubTreeAdapter.getStub(t) : null;
+        if (stub != null) {
+            return Iterators.transform(iterator(StubTreeAdapter.INSTANCE, stub), StubElement::getPsi);
         }
-        PsiElement dummyRoot = new DummyRoot(t); // a dummy parent of t so we can initialize the work list
+        return iterator(PsiTreeAdapter.INSTANCE, t);
+    }
 
-        Collection<PsiElement> work = Collections.singleton(dummyRoot);
+    public <N> Iterator<N> iterator(XPathTreeAdapter<N> tree, N t) {
+        return pathIterator(tree, t, elements);
+    }
 
-        int i = 0;
-        while (i < elements.length) {
-            Collection<PsiElement> next = new LinkedHashSet<>();
-            for (PsiElement node : work) {
-                if (node.getChildren().length > 0) {
-                    // only try to match next element if it has children
-                    // e.g., //func/*/stat might have a token node for which
-                    // we can't go looking for stat nodes.
-                    Collection<? extends PsiElement> matching = elements[i].evaluate(node);
-                    next.addAll(matching);
-                }
+    /**
+     * Return first node that satisfies the path, or {@code null}.
+     */
+    @Nullable
+    public PsiElement findFirst(PsiElement t) {
+        return findFirst(t, node -> true);
+    }
+
+    /**
+     * Return first node that satisfies the path and given predicate, or
+     * {@code null}. Evaluation stops at that node.
+     */
+    @Nullable
+    public PsiElement findFirst(PsiElement t, Predicate<? super PsiElement> predicate) {
+        return Iterators.find(iterator(t), predicate::test, null);
+    }
+
+    @Nullable
+    public <N> N findFirst(XPathTreeAdapter<N> tree, N t, Predicate<? super N> predicate) {
+        Iterator<N> it = iterator(tree, t);
+        while (it.hasNext()) {
+            N node = it.next();
+            if (predicate.test(node)) {
+                return node;
             }
-            i++;
-            work = next;
         }
+        return null;
+    }
 
-        return work;
+    public boolean exists(PsiElement t) {
+        return iterator(t).hasNext();
     }
 
-    public static class DummyRoot extends CompositePsiElement {
-        public final PsiElement child;
+    public <N> boolean exists(XPathTreeAdapter<N> tree, N t) {
+        return iterator(tree, t).hasNext();
+    }
 
-        public DummyRoot(PsiElement child) {
-            super(GeneratedParserUtilBase.DUMMY_BLOCK);
-            this.child = child;
+    public int count(PsiElement t) {
+        int count = 0;
+        for (Iterator<PsiElement> it = iterator(t); it.hasNext(); it.next()) {
+            count++;
         }
+        return count;
+    }
 
-        @NotNull
-        @Override
-        public PsiElement[] getChildren() {
-            return new PsiElement[]{child};
+    public void forEach(PsiElement t, Consumer<? super PsiElement> action) {
+        iterator(t).forEachRemaining(action);
+    }
+
+    private <N> Iterator<N> pathIterator(XPathTreeAdapter<N> tree, N t, XPathElement[] elements) {
+        if (t == null || elements.length == 0) {
+            return Collections.emptyIterator();
+        }
+        // the PSI fileroot exists above start rule in ANTLR grammar and hence above ANTLR's parse tree root
+        // drop t down to top of ANTLR's tree. Should be only child if we ignore WS, Comments
+        N root = tree.getRoot(t);
+        if (root == null) {
+            return Collections.emptyIterator();
+        }
+        if (automaton != null && elements == this.elements) {
+            return automaton.iterator(tree, root, 0);
+        }
+        return new PathIterator<>(tree, elements, variables, root);
+    }
+
+    /**
+     * Composes lazy iterators of all path elements depth-first: the
+     * iterator of element {@code i} runs over the node most recently
+     * produced by element {@code i - 1}. This yields nodes in the same order
+     * as evaluating the path step by step, without collecting each step.
+     * The first element is applied to an imaginary parent of the root,
+     * i.e. to the root itself or, for {@code //}, to the whole tree.
+     * <p>
+     * The same node could only be reached twice through a {@code //} element
+     * if an earlier {@code //} element produced both a node and its
+     * ancestor; such paths are run by {@link XPathAutomaton}, except when
+     * evaluating arbitrary elements, where an identity set drops duplicates.
+     */
+    private static final class PathIterator<N> implements Iterator<N> {
+        private final XPathTreeAdapter<N> tree;
+        private final XPathElement[] elements;
+        private final Map<String, ? extends CharSequence> variables;
+        private final Iterator<N>[] steps;
+        private final Set<N>[] visited;
+        private int depth;
+        private N next;
+
+        @SuppressWarnings("unchecked")
+        PathIterator(XPathTreeAdapter<N> tree, XPathElement[] elements,
+                     Map<String, ? extends CharSequence> variables, N root) {
+            this.tree = tree;
+            this.elements = elements;
+            this.variables = variables;
+            this.steps = new Iterator[elements.length];
+            this.visited = new Set[elements.length];
+            boolean nested = false;
+            for (int i = 0; i < elements.length; i++) {
+                if (elements[i].isAnywhere()) {
+                    if (nested) {
+                        visited[i] = Collections.newSetFromMap(new IdentityHashMap<>());
+                    }
+                    nested = true;
+                }
+            }
+            XPathElement first = elements[0];
+            steps[0] = first.isAnywhere()
+                    ? first.iterator(tree, root)
+                    : Iterators.filter(Iterators.singletonIterator(root), node -> first.matches(tree, node));
+            next = advance();
         }
 
-        @NotNull
         @Override
-        public PsiReference[] getReferences() {
-            return PsiReference.EMPTY_ARRAY;
+        public boolean hasNext() {
+            return next != null;
         }
 
-        @NotNull
         @Override
-        public Language getLanguage() {
-            return getParent().getLanguage();
+        public N next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            N result = next;
+            next = advance();
+            return result;
         }
+
+        private N advance() {
+            while (depth >= 0) {
+                Iterator<N> step = steps[depth];
+                if (!step.hasNext()) {
+                    steps[depth] = null;
+                    depth--;
+                    continue;
+                }
+                N node = step.next();
+                if (visited[depth] != null && !visited[depth].add(node)) {
+                    continue;
+                }
+                if (!elements[depth].testPredicates(tree, node, variables)) {
+                    continue;
+                }
+                if (depth == elements.length - 1) {
+                    return node;
+                }
+                if (tree.hasChildren(node)) {
+                    // only try to match next element if it has children
+                    // e.g., //func/*/stat might have a token node for which
+                    // we can't go looking for stat nodes.
+                    depth++;
+                    steps[depth] = elements[depth].iterator(tree, node);
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
     }
 }
@@ -0,0 +1,323 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.AbstractIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Steps of one or more paths compiled into a trie-shaped automaton that
+ * is run in a single depth-first pass over the tree.
+ * <p>
+ * Each state is a path step; paths with equal leading steps share states.
+ * For every visited node the automaton computes two state sets from the
+ * sets of the parent:
+ * <ul>
+ * <li>{@code matched}: node is a result of the step, i.e. it matches the
+ * step and, for a {@code /} step, its parent matched the previous step or,
+ * for a {@code //} step, it is in {@code active};</li>
+ * <li>{@code active}: for {@code //} steps, the node or one of its
+ * ancestors matched the previous step and has children.</li>
+ * </ul>
+ * This is equivalent to evaluating the paths step by step, but every node
+ * is visited once no matter how many {@code //} steps overlap. Subtrees
+ * where no state can match are skipped. Results are reported
+ * in document order.
+ */
+final class XPathAutomaton {
+    private static final int START = -1;
+
+    private final XPathElement[] stepElements;
+    private final Map<String, ? extends CharSequence>[] stepVariables;
+    private final int[] parents;
+    /**
+     * States followed by a {@code /} step; children of nodes matching them
+     * must be visited.
+     */
+    private final BitSet hasChildStep;
+    /**
+     * Queries accepted in each state, or {@code null}.
+     */
+    private final int[][] accepting;
+
+    private XPathAutomaton(List<State> states) {
+        int n = states.size();
+        this.stepElements = new XPathElement[n];
+        @SuppressWarnings("unchecked")
+        Map<String, ? extends CharSequence>[] variables = new Map[n];
+        this.stepVariables = variables;
+        this.parents = new int[n];
+        this.accepting = new int[n][];
+        this.hasChildStep = new BitSet(n);
+        for (int i = 0; i < n; i++) {
+            State state = states.get(i);
+            stepElements[i] = state.element;
+            stepVariables[i] = state.variables;
+            parents[i] = state.parent;
+            if (state.parent != START && !state.element.isAnywhere()) {
+                hasChildStep.set(state.parent);
+            }
+            if (!state.queries.isEmpty()) {
+                accepting[i] = state.queries.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    private XPathAutomaton(XPathAutomaton automaton, Map<String, ? extends CharSequence>[] stepVariables) {
+        this.stepElements = automaton.stepElements;
+        this.stepVariables = stepVariables;
+        this.parents = automaton.parents;
+        this.accepting = automaton.accepting;
+        this.hasChildStep = automaton.hasChildStep;
+    }
+
+    /**
+     * Compile paths into one automaton; query {@code i} is {@code paths[i]}.
+     */
+    static XPathAutomaton compile(List<XPath> paths) {
+        List<State> states = new ArrayList<>();
+        Map<String, Integer> stateIndexes = new HashMap<>();
+        for (int q = 0; q < paths.size(); q++) {
+            XPath path = paths.get(q);
+            XPathElement[] elements = path.getElements();
+            int state = START;
+            for (XPathElement element : elements) {
+                Map<String, ? extends CharSequence> variables =
+                        element.hasPredicates() ? path.getVariables() : Collections.emptyMap();
+                // states are shared when the whole prefix is equal
+                String key = state + " " + element + (variables.isEmpty() ? "" : variables.toString());
+                Integer existing = stateIndexes.get(key);
+                if (existing == null) {
+                    existing = states.size();
+                    states.add(new State(element, variables, state));
+                    stateIndexes.put(key, existing);
+                }
+                state = existing;
+            }
+            if (state != START) {
+                states.get(state).queries.add(q);
+            }
+        }
+        return new XPathAutomaton(states);
+    }
+
+    /**
+     * Return automaton of a single path with other values for the
+     * variables of its predicates. States and transitions are shared with
+     * this automaton; only the values tested in each state are replaced.
+     */
+    XPathAutomaton bind(Map<String, ? extends CharSequence> variables) {
+        @SuppressWarnings("unchecked")
+        Map<String, ? extends CharSequence>[] bound = new Map[stepElements.length];
+        for (int s = 0; s < stepElements.length; s++) {
+            bound[s] = stepElements[s].hasPredicates() ? variables : Collections.emptyMap();
+        }
+        return new XPathAutomaton(this, bound);
+    }
+
+    /**
+     * Run automaton over subtree of {@code root}; root is the node that the
+     * first step is applied to, as returned by {@link XPathTreeAdapter#getRoot}.
+     *
+     * @return false if the sink stopped evaluation
+     */
+    <N> boolean run(XPathTreeAdapter<N> tree, N root, Sink<? super N> sink) {
+        Run<N> run = new Run<>(tree, root);
+        while (run.visitNext()) {
+            BitSet nodeMatched = run.matched();
+            for (int s = nodeMatched.nextSetBit(0); s >= 0; s = nodeMatched.nextSetBit(s + 1)) {
+                if (accepting[s] != null) {
+                    for (int query : accepting[s]) {
+                        if (!sink.accept(query, run.node())) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lazily iterate over results of given query in document order. Each
+     * node is visited at most once, and no further than the returned node.
+     */
+    <N> Iterator<N> iterator(XPathTreeAdapter<N> tree, N root, int query) {
+        BitSet accepts = new BitSet(stepElements.length);
+        for (int s = 0; s < accepting.length; s++) {
+            if (accepting[s] != null && Arrays.stream(accepting[s]).anyMatch(q -> q == query)) {
+                accepts.set(s);
+            }
+        }
+        Run<N> run = new Run<>(tree, root);
+        return new AbstractIterator<N>() {
+            @Override
+            protected N computeNext() {
+                while (run.visitNext()) {
+                    if (run.matched().intersects(accepts)) {
+                        return run.node();
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * State of one depth-first pass; visits one node at a time so that
+     * evaluation can be suspended between nodes.
+     */
+    private final class Run<N> {
+        private final XPathTreeAdapter<N> tree;
+        // state sets per depth, reused for all nodes at that depth
+        private final List<BitSet> matched = new ArrayList<>();
+        private final List<BitSet> active = new ArrayList<>();
+        private final Deque<Iterator<N>> children = new ArrayDeque<>();
+        private N next;
+        private N node;
+        private int depth = -1;
+        private Iterator<N> nodeChildren;
+
+        Run(XPathTreeAdapter<N> tree, N root) {
+            this.tree = tree;
+            this.next = root;
+        }
+
+        N node() {
+            return node;
+        }
+
+        /**
+         * Returns states matched by the current node.
+         */
+        BitSet matched() {
+            return matched.get(depth);
+        }
+
+        /**
+         * Move to the next node in document order, skipping subtrees where
+         * no state is matched or active, and compute its state sets.
+         *
+         * @return false if there are no more nodes
+         */
+        boolean visitNext() {
+            if (node != null) {
+                if (nodeChildren.hasNext() && isChildrenRelevant()) {
+                    children.push(nodeChildren);
+                    next = nodeChildren.next();
+                    depth++;
+                } else {
+                    // next sibling, or next sibling of the closest ancestor that has one
+                    next = null;
+                    while (!children.isEmpty()) {
+                        Iterator<N> siblings = children.peek();
+                        if (siblings.hasNext()) {
+                            next = siblings.next();
+                            break;
+                        }
+                        children.pop();
+                        depth--;
+                    }
+                }
+            } else if (next != null) {
+                depth = 0;
+            }
+            node = next;
+            next = null;
+            if (node == null || stepElements.length == 0) {
+                node = null;
+                return false;
+            }
+            visit();
+            return true;
+        }
+
+        /**
+         * Children of the current node can only match if it matched a
+         * state followed by a {@code /} step, or if a {@code //} step is
+         * active and the subtree may contain what it looks for.
+         */
+        private boolean isChildrenRelevant() {
+            if (matched.get(depth).intersects(hasChildStep)) {
+                return true;
+            }
+            BitSet nodeActive = active.get(depth);
+            for (int s = nodeActive.nextSetBit(0); s >= 0; s = nodeActive.nextSetBit(s + 1)) {
+                if (stepElements[s].mayOccurIn(tree, node)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void visit() {
+            int stateCount = stepElements.length;
+            if (matched.size() == depth) {
+                matched.add(new BitSet(stateCount));
+                active.add(new BitSet(stateCount));
+            }
+            BitSet nodeMatched = matched.get(depth);
+            BitSet nodeActive = active.get(depth);
+            nodeMatched.clear();
+            nodeActive.clear();
+            BitSet parentMatched = depth > 0 ? matched.get(depth - 1) : null;
+            BitSet parentActive = depth > 0 ? active.get(depth - 1) : null;
+            nodeChildren = tree.children(node);
+            boolean hasChildren = nodeChildren.hasNext();
+
+            for (int s = 0; s < stateCount; s++) {
+                XPathElement element = stepElements[s];
+                int parent = parents[s];
+                boolean context;
+                if (element.isAnywhere()) {
+                    context = parent == START
+                            || parentActive != null && parentActive.get(s)
+                            || hasChildren && nodeMatched.get(parent);
+                    if (context) {
+                        nodeActive.set(s);
+                    }
+                } else if (parent == START) {
+                    context = depth == 0;
+                } else {
+                    context = parentMatched != null && parentMatched.get(parent);
+                }
+                if (context && element.matches(tree, node)
+                        && element.testPredicates(tree, node, stepVariables[s])) {
+                    nodeMatched.set(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives results of an automaton run.
+     */
+    interface Sink<N> {
+        /**
+         * Accept a result of given query.
+         *
+         * @return false to stop evaluation
+         */
+        boolean accept(int query, N node);
+    }
+
+    private static final class State {
+        private final XPathElement element;
+        private final Map<String, ? extends CharSequence> variables;
+        private final int parent;
+        private final List<Integer> queries = new ArrayList<>();
+
+        State(XPathElement element, Map<String, ? extends CharSequence> variables, int parent) {
+            this.element = element;
+            this.variables = variables;
+            this.parent = parent;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.psi.PsiElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of compiled paths evaluated together in one traversal of the
+ * tree, e.g. lookups of variable, function and argument definitions in the
+ * same scope:
+ * <pre>
+ * XPathBatch batch = XPathBatch.of(XPath.compile(factory, "/script/vardef/ID"),
+ *         XPath.compile(factory, "/script/function/ID"));
+ * List&lt;List&lt;PsiElement&gt;&gt; results = batch.evaluate(file);
+ * </pre>
+ * Steps of all paths are compiled into a shared automaton, so paths with
+ * common prefixes also share the work of matching them. Results of each
+ * path are in document order. Batches are immutable and can be shared
+ * between threads.
+ */
+public final class XPathBatch {
+    private final List<XPath> paths;
+    private final XPathAutomaton automaton;
+
+    private XPathBatch(List<XPath> paths) {
+        this.paths = paths;
+        this.automaton = XPathAutomaton.compile(paths);
+    }
+
+    public static XPathBatch of(XPath... paths) {
+        return of(Arrays.asList(paths));
+    }
+
+    public static XPathBatch of(List<XPath> paths) {
+        return new XPathBatch(new ArrayList<>(paths));
+    }
+
+    public List<XPath> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Evaluate all paths starting at {@code t} as root; result {@code i}
+     * holds the nodes of path {@code i}.
+     */
+    public List<List<PsiElement>> evaluate(PsiElement t) {
+        return evaluate(PsiTreeAdapter.INSTANCE, t);
+    }
+
+    public <N> List<List<N>> evaluate(XPathTreeAdapter<N> tree, N t) {
+        List<List<N>> results = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            results.add(new ArrayList<>());
+        }
+        N root = t != null ? tree.getRoot(t) : null;
+        if (root != null) {
+            automaton.run(tree, root, (query, node) -> results.get(query).add(node));
+        }
+        return results;
+    }
+}
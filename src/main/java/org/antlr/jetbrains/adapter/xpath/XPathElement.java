@@ -31,12 +31,19 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
+import com.google.common.collect.Iterators;
 import com.intellij.psi.PsiElement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public abstract class XPathElement {
     protected String nodeName;
     protected boolean invert;
+    protected XPathPredicate[] predicates = new XPathPredicate[0];
 
     /**
      * Construct element like {@code /ID} or {@code ID} or {@code /*} etc...
@@ -50,11 +57,71 @@ public abstract class XPathElement {
      * Given subtree rooted at {@code t} return all children of t that
      * match this path element.
      */
-    public abstract Collection<PsiElement> evaluate(PsiElement t);
+    public Collection<PsiElement> evaluate(PsiElement t) {
+        List<PsiElement> nodes = new ArrayList<>();
+        iterator(PsiTreeAdapter.INSTANCE, t).forEachRemaining(node -> {
+            if (testPredicates(PsiTreeAdapter.INSTANCE, node, Collections.emptyMap())) {
+                nodes.add(node);
+            }
+        });
+        return nodes;
+    }
+
+    /**
+     * Lazily iterate over nodes of subtree rooted at {@code t} that
+     * match this path element, in document order: children of {@code t},
+     * or {@code t} and all its descendants for {@link #isAnywhere() anywhere}
+     * elements.
+     */
+    public <N> Iterator<N> iterator(XPathTreeAdapter<N> tree, N t) {
+        Iterator<N> candidates = isAnywhere() ? new DescendantIterator<>(tree, t) : tree.children(t);
+        return Iterators.filter(candidates, node -> matches(tree, node));
+    }
+
+    /**
+     * Returns true if given node matches this path element.
+     */
+    public abstract <N> boolean matches(XPathTreeAdapter<N> tree, N node);
+
+    /**
+     * Returns true if node satisfies all predicates of this element.
+     */
+    public <N> boolean testPredicates(XPathTreeAdapter<N> tree, N node, Map<String, ? extends CharSequence> variables) {
+        for (XPathPredicate predicate : predicates) {
+            if (!predicate.test(tree, node, variables)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the subtree of {@code node} (including it) surely
+     * contains no node that matches this element.
+     */
+    public <N> boolean mayOccurIn(XPathTreeAdapter<N> tree, N node) {
+        return true;
+    }
+
+    public boolean hasPredicates() {
+        return predicates.length > 0;
+    }
+
+    /**
+     * Returns true if this element matches descendants ({@code //}) rather
+     * than children of a node.
+     */
+    public boolean isAnywhere() {
+        return false;
+    }
 
     @Override
     public String toString() {
         String inv = invert ? "!" : "";
-        return getClass().getSimpleName() + "[" + inv + nodeName + "]";
+        StringBuilder buf = new StringBuilder(getClass().getSimpleName()).append('[').append(inv).append(nodeName);
+        for (XPathPredicate predicate : predicates) {
+            buf.append(predicate);
+        }
+        return buf.append(']').toString();
     }
 }
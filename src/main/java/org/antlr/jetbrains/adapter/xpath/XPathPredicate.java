@@ -0,0 +1,118 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import java.util.Map;
+
+/**
+ * Predicate of a path element, written in brackets after it:
+ * <dl>
+ * <dt>{@code [.='x']}</dt> <dd>text of the node equals {@code x}</dd>
+ * <dt>{@code [@name='x']}</dt> <dd>name of the node equals {@code x}</dd>
+ * <dt>{@code [.=$var]}</dt> <dd>compare to the value of a variable bound with
+ * {@link XPath#bind}</dd>
+ * <dt>{@code !=}</dt> <dd>negated comparison</dd>
+ * </dl>
+ * Literals may be quoted with {@code '} or {@code "}. Text is compared by
+ * the tree model, which can do so without allocating strings.
+ */
+public class XPathPredicate {
+    public static final String NAME_ATTRIBUTE = "name";
+
+    private final boolean name;
+    private final boolean negated;
+    private final String literal;
+    private final String variable;
+
+    private XPathPredicate(boolean name, boolean negated, String literal, String variable) {
+        this.name = name;
+        this.negated = negated;
+        this.literal = literal;
+        this.variable = variable;
+    }
+
+    /**
+     * Parse predicate text found between brackets.
+     *
+     * @throws IllegalArgumentException if predicate is invalid
+     */
+    public static XPathPredicate parse(String text) {
+        String s = text.trim();
+        boolean name;
+        int i;
+        if (s.startsWith(".")) {
+            name = false;
+            i = 1;
+        } else if (s.startsWith("@")) {
+            int j = 1;
+            while (j < s.length() && Character.isJavaIdentifierPart(s.charAt(j))) {
+                j++;
+            }
+            String attribute = s.substring(1, j);
+            if (!NAME_ATTRIBUTE.equals(attribute)) {
+                throw new IllegalArgumentException("Unknown attribute @" + attribute + " in predicate [" + text + "]");
+            }
+            name = true;
+            i = j;
+        } else {
+            throw new IllegalArgumentException("Expected . or @name in predicate [" + text + "]");
+        }
+        i = skipSpaces(s, i);
+        boolean negated = s.startsWith("!=", i);
+        if (negated) {
+            i += 2;
+        } else if (s.startsWith("=", i)) {
+            i++;
+        } else {
+            throw new IllegalArgumentException("Expected = or != in predicate [" + text + "]");
+        }
+        String value = s.substring(skipSpaces(s, i));
+        if (value.startsWith("$") && value.length() > 1) {
+            return new XPathPredicate(name, negated, null, value.substring(1));
+        }
+        if (value.length() >= 2
+                && (value.charAt(0) == '\'' || value.charAt(0) == '"')
+                && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return new XPathPredicate(name, negated, value.substring(1, value.length() - 1), null);
+        }
+        throw new IllegalArgumentException("Expected quoted string or $variable in predicate [" + text + "]");
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns variable name, or {@code null} if predicate compares to a literal.
+     */
+    public String getVariable() {
+        return variable;
+    }
+
+    /**
+     * Returns true if predicate compares the {@code @name} of nodes rather
+     * than their text.
+     */
+    public boolean isNameTest() {
+        return name;
+    }
+
+    public <N> boolean test(XPathTreeAdapter<N> tree, N node, Map<String, ? extends CharSequence> variables) {
+        CharSequence value = literal;
+        if (variable != null) {
+            value = variables.get(variable);
+            if (value == null) {
+                throw new IllegalStateException("Variable $" + variable + " is not bound");
+            }
+        }
+        boolean matches = name ? tree.nameMatches(node, value) : tree.textMatches(node, value);
+        return matches != negated;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (name ? "@" + NAME_ATTRIBUTE : ".") + (negated ? "!=" : "=")
+                + (variable != null ? "$" + variable : "'" + literal + "'") + "]";
+    }
+}
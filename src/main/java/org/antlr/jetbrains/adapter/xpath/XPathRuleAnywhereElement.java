@@ -31,9 +31,7 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
-import java.util.Collection;
-import org.antlr.jetbrains.adapter.psi.Trees;
+import java.util.Iterator;
 
 /**
  * Either {@code rulename} at start of path or {@code ...//rulename} in middle of path.
@@ -47,7 +45,23 @@ public class XPathRuleAnywhereElement extends XPathElement {
     }
 
     @Override
-    public Collection<PsiElement> evaluate(PsiElement t) {
-        return Trees.findAllRuleNodes(t, ruleIndex);
+    public <N> Iterator<N> iterator(XPathTreeAdapter<N> tree, N t) {
+        return tree.findAllRuleNodes(t, ruleIndex);
+    }
+
+    @Override
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // same nodes as Trees.findAllRuleNodes(t, ruleIndex)
+        return tree.isRuleNode(node, ruleIndex);
+    }
+
+    @Override
+    public <N> boolean mayOccurIn(XPathTreeAdapter<N> tree, N node) {
+        return tree.mayContainRule(node, ruleIndex);
+    }
+
+    @Override
+    public boolean isAnywhere() {
+        return true;
     }
 }
@@ -31,11 +31,7 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.IElementType;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
 
 public class XPathRuleElement extends XPathElement {
@@ -47,19 +43,10 @@ public class XPathRuleElement extends XPathElement {
     }
 
     @Override
-    public Collection<PsiElement> evaluate(PsiElement t) {
-        // return all children of t that match ANTLR rule index
-        List<PsiElement> nodes = new ArrayList<>();
-        for (PsiElement c : t.getChildren()) {
-            IElementType elementType = c.getNode().getElementType();
-            if (elementType instanceof RuleIElementType) {
-                RuleIElementType ruleEl = (RuleIElementType) elementType;
-                if ((ruleEl.getRuleIndex() == ruleIndex && !invert)
-                        || (ruleEl.getRuleIndex() != ruleIndex && invert)) {
-                    nodes.add(c);
-                }
-            }
-        }
-        return nodes;
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // child rule nodes that match ANTLR rule index
+        IElementType elementType = tree.getElementType(node);
+        return elementType instanceof RuleIElementType
+                && (((RuleIElementType) elementType).getRuleIndex() == ruleIndex) != invert;
     }
 }
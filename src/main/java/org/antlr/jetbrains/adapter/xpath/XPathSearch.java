@@ -0,0 +1,108 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Processor;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.antlr.jetbrains.adapter.psi.TokenOccurrenceSummary;
+
+/**
+ * Evaluates a compiled {@link XPath} over all files of a file type in a
+ * search scope, e.g. for inspections or "find all" actions:
+ * <pre>
+ * XPath path = XPath.compile(factory, "//function/ID");
+ * XPathSearch.search(project, SampleFileType.INSTANCE, path, GlobalSearchScope.projectScope(project),
+ *         indicator, id -&gt; { ...; return true; });
+ * </pre>
+ * Files are searched concurrently, each under its own read action. A file
+ * is parsed only if lexing it finds all {@link XPath#getRequiredTokenTypes()
+ * token types the path requires}; see {@link TokenOccurrenceSummary}.
+ */
+public final class XPathSearch {
+    private XPathSearch() {
+    }
+
+    /**
+     * Pass every node matching the path to {@code processor} as soon as
+     * it is found. The processor is called from several threads at once;
+     * when it returns false, the search is stopped. The search is also
+     * stopped when {@code indicator} is canceled.
+     *
+     * @return false if the processor stopped the search
+     */
+    public static boolean search(Project project, LanguageFileType fileType, XPath path, GlobalSearchScope scope,
+                                 ProgressIndicator indicator, Processor<? super PsiElement> processor) {
+        List<VirtualFile> files = ApplicationManager.getApplication().runReadAction(
+                (Computable<List<VirtualFile>>) () -> new ArrayList<>(FileTypeIndex.getFiles(fileType, scope)));
+        if (files.isEmpty()) {
+            return true;
+        }
+        BitSet requiredTokenTypes = path.getRequiredTokenTypes();
+        PsiManager psiManager = PsiManager.getInstance(project);
+        AtomicBoolean stopped = new AtomicBoolean();
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(files, indicator, true, false, file -> {
+            if (stopped.get()) {
+                return false;
+            }
+            if (!searchFile(psiManager, file, path, requiredTokenTypes, processor)) {
+                stopped.set(true);
+                return false;
+            }
+            return true;
+        });
+        return !stopped.get();
+    }
+
+    /**
+     * Return all nodes matching the path, in no particular order. Runs
+     * under the current progress indicator, if any.
+     */
+    public static List<PsiElement> findAll(Project project, LanguageFileType fileType, XPath path,
+                                           GlobalSearchScope scope) {
+        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        List<PsiElement> nodes = Collections.synchronizedList(new ArrayList<>());
+        search(project, fileType, path, scope, indicator != null ? indicator : new EmptyProgressIndicator(),
+                nodes::add);
+        return nodes;
+    }
+
+    private static boolean searchFile(PsiManager psiManager, VirtualFile file, XPath path, BitSet requiredTokenTypes,
+                                      Processor<? super PsiElement> processor) {
+        if (!file.isValid()) {
+            return true;
+        }
+        PsiFile psiFile = psiManager.findFile(file);
+        if (psiFile == null) {
+            return true;
+        }
+        if (!requiredTokenTypes.isEmpty()
+                && !TokenOccurrenceSummary.getInstance(psiFile).containsAll(requiredTokenTypes)) {
+            return true;
+        }
+        Iterator<PsiElement> nodes = path.iterator(psiFile);
+        while (nodes.hasNext()) {
+            ProgressManager.checkCanceled();
+            if (!processor.process(nodes.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
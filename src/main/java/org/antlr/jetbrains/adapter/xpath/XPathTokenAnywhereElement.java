@@ -31,9 +31,7 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
-import java.util.Collection;
-import org.antlr.jetbrains.adapter.psi.Trees;
+import java.util.Iterator;
 
 /**
  * Either {@code ID} at start of path or {@code ...//ID} in middle of path.
@@ -47,7 +45,23 @@ public class XPathTokenAnywhereElement extends XPathElement {
     }
 
     @Override
-    public Collection<PsiElement> evaluate(PsiElement t) {
-        return Trees.findAllTokenNodes(t, tokenType);
+    public <N> Iterator<N> iterator(XPathTreeAdapter<N> tree, N t) {
+        return tree.findAllTokenNodes(t, tokenType);
+    }
+
+    @Override
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // same nodes as Trees.findAllTokenNodes(t, tokenType)
+        return tree.isTokenNode(node, tokenType);
+    }
+
+    @Override
+    public <N> boolean mayOccurIn(XPathTreeAdapter<N> tree, N node) {
+        return tree.mayContainToken(node, tokenType);
+    }
+
+    @Override
+    public boolean isAnywhere() {
+        return true;
     }
 }
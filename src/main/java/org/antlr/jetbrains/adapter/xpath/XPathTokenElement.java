@@ -31,11 +31,7 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.IElementType;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
 
 public class XPathTokenElement extends XPathElement {
@@ -47,19 +43,10 @@ public class XPathTokenElement extends XPathElement {
     }
 
     @Override
-    public Collection<PsiElement> evaluate(PsiElement t) {
-        // return all children of t that match nodeName
-        List<PsiElement> nodes = new ArrayList<>();
-        for (PsiElement c : t.getChildren()) {
-            IElementType elementType = c.getNode().getElementType();
-            if (elementType instanceof TokenIElementType) {
-                TokenIElementType tokEl = (TokenIElementType) elementType;
-                if ((tokEl.getAntlrTokenType() == tokenType && !invert)
-                        || (tokEl.getAntlrTokenType() != tokenType && invert)) {
-                    nodes.add(c);
-                }
-            }
-        }
-        return nodes;
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // child token nodes that match nodeName
+        IElementType elementType = tree.getElementType(node);
+        return elementType instanceof TokenIElementType
+                && (((TokenIElementType) elementType).getAntlrTokenType() == tokenType) != invert;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,118 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.google.common.collect.Iterators;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import java.util.Iterator;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tree model that {@link XPath} evaluates over. Implementations exist for
+ * PSI ({@link PsiTreeAdapter}), {@code ASTNode} ({@link AstTreeAdapter})
+ * and {@code LighterAST} ({@link LighterAstTreeAdapter}), so paths can be
+ * evaluated without creating PSI, e.g. from indexers and stub builders.
+ *
+ * @param <N> node type
+ */
+public interface XPathTreeAdapter<N> {
+
+    /**
+     * Iterate over children of a node, without whitespace and comments.
+     */
+    Iterator<N> children(N node);
+
+    IElementType getElementType(N node);
+
+    /**
+     * Returns true for token nodes.
+     */
+    boolean isLeaf(N node);
+
+    /**
+     * Returns true if text of the node equals given text. Implementations
+     * should avoid creating strings, e.g. compare against the file buffer.
+     */
+    boolean textMatches(N node, CharSequence text);
+
+    /**
+     * Returns true if name of the node, as used by {@code [@name=...]}
+     * predicates, equals given name. Nodes without a name match none.
+     */
+    boolean nameMatches(N node, CharSequence name);
+
+    default boolean hasChildren(N node) {
+        return children(node).hasNext();
+    }
+
+    /**
+     * Returns true if node is a composite node of given rule.
+     */
+    default boolean isRuleNode(N node, int ruleIndex) {
+        if (isLeaf(node)) {
+            return false;
+        }
+        IElementType elementType = getElementType(node);
+        return elementType instanceof RuleIElementType
+                && ((RuleIElementType) elementType).getRuleIndex() == ruleIndex;
+    }
+
+    /**
+     * Returns true if node is a token of given type.
+     */
+    default boolean isTokenNode(N node, int tokenType) {
+        if (!isLeaf(node)) {
+            return false;
+        }
+        IElementType elementType = getElementType(node);
+        return elementType instanceof TokenIElementType
+                && ((TokenIElementType) elementType).getAntlrTokenType() == tokenType;
+    }
+
+    /**
+     * Returns false if subtree of {@code node} surely contains no node of
+     * given rule. Override if the model keeps a summary of subtrees.
+     */
+    default boolean mayContainRule(N node, int ruleIndex) {
+        return true;
+    }
+
+    /**
+     * Returns false if subtree of {@code node} surely contains no token of
+     * given type.
+     */
+    default boolean mayContainToken(N node, int tokenType) {
+        return true;
+    }
+
+    /**
+     * Iterate over {@code node} and its descendants that are nodes of
+     * given rule, in document order. Override to use an index.
+     */
+    default Iterator<N> findAllRuleNodes(N node, int ruleIndex) {
+        return Iterators.filter(new DescendantIterator<>(this, node), n -> isRuleNode(n, ruleIndex));
+    }
+
+    /**
+     * Iterate over {@code node} and its descendants that are tokens of
+     * given type, in document order. Override to use an index.
+     */
+    default Iterator<N> findAllTokenNodes(N node, int tokenType) {
+        return Iterators.filter(new DescendantIterator<>(this, node), n -> isTokenNode(n, tokenType));
+    }
+
+    /**
+     * Returns the node that a path starting with {@code /} is relative to.
+     * A file node exists above the start rule of the grammar, so it is
+     * replaced by its first child, the root of ANTLR's tree.
+     */
+    @Nullable
+    default N getRoot(N node) {
+        if (getElementType(node) instanceof IFileElementType) {
+            Iterator<N> children = children(node);
+            return children.hasNext() ? children.next() : null;
+        }
+        return node;
+    }
+}
@@ -31,11 +31,6 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
-import java.util.ArrayList;
-import java.util.Collection;
-import org.antlr.jetbrains.adapter.psi.Trees;
-
 public class XPathWildcardAnywhereElement extends XPathElement {
 
     public XPathWildcardAnywhereElement() {
@@ -43,11 +38,13 @@ public class XPathWildcardAnywhereElement extends XPathElement {
     }
 
     @Override
-    public Collection<PsiElement> evaluate(PsiElement t) {
-        if (invert) {
-            // !* is weird but valid (empty)
-            return new ArrayList<>();
-        }
-        return Trees.getDescendants(t);
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // !* is weird but valid (empty)
+        return !invert;
+    }
+
+    @Override
+    public boolean isAnywhere() {
+        return true;
     }
 }
@@ -31,25 +31,14 @@
 
 package org.antlr.jetbrains.adapter.xpath;
 
-import com.intellij.psi.PsiElement;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
-
 public class XPathWildcardElement extends XPathElement {
     public XPathWildcardElement() {
         super(XPath.WILDCARD);
     }
 
     @Override
-    public Collection<PsiElement> evaluate(final PsiElement t) {
-        if (invert) {
-            // !* is weird but valid (empty)
-            return new ArrayList<>();
-        }
-        List<PsiElement> kids = new ArrayList<>();
-        kids.addAll(Arrays.asList(t.getChildren()));
-        return kids;
+    public <N> boolean matches(XPathTreeAdapter<N> tree, N node) {
+        // !* is weird but valid (empty)
+        return !invert;
     }
 }
@@ -0,0 +1,34 @@
+package org.antlr.jetbrains.adapter;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.ParsingTestCase;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.psi.SamplePsiFileRoot;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+
+/**
+ * Tests for {@link SymtabUtils}.
+ */
+public class SymtabUtilsTest extends ParsingTestCase {
+
+    private static final SampleParserDefinition PARSER_DEFINITION =
+            new SampleParserDefinition();
+
+    public SymtabUtilsTest() {
+        super("", "Sample", PARSER_DEFINITION);
+    }
+
+    public void testLastDuplicateDefinitionWins() throws Exception {
+        myFile = createPsiFile("a", "var x = 1\nvar x = 2\nvar y = x\n");
+        ensureParsed(myFile);
+        List<VardefSubtree> vardefs = new ArrayList<>(PsiTreeUtil.findChildrenOfType(myFile, VardefSubtree.class));
+        assertEquals(3, vardefs.size());
+
+        PsiElement resolved = ((SamplePsiFileRoot) myFile).resolve(vardefs.get(0));
+        assertSame(vardefs.get(1), resolved);
+        assertSame(vardefs.get(2), ((SamplePsiFileRoot) myFile).resolve(vardefs.get(2)));
+    }
+}
@@ -0,0 +1,100 @@
+package org.antlr.jetbrains.adapter.interpreter;
+
+import com.intellij.lang.Language;
+import com.intellij.testFramework.ParsingTestCase;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.adapter.lexer.AntlrLexerAdapter;
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserInterpreter;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * Tests for {@link InterpretedGrammar}.
+ */
+public class InterpretedGrammarTest extends ParsingTestCase {
+
+    private static final Language LANGUAGE = new Language("InterpretedCalc") {
+    };
+
+    private static final String GRAMMAR = "grammar Calc;\n"
+            + "expr : term (PLUS term)* ;\n"
+            + "term : INT | LPAREN expr RPAREN ;\n"
+            + "PLUS : '+' ;\n"
+            + "LPAREN : '(' ;\n"
+            + "RPAREN : ')' ;\n"
+            + "INT : [0-9]+ ;\n"
+            + "WS : [ \\t]+ -> skip ;\n";
+
+    public InterpretedGrammarTest() {
+        super("", "Sample", new SampleParserDefinition());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        InterpretedGrammar.invalidateCache();
+        super.tearDown();
+    }
+
+    public void testInterpretation() throws Exception {
+        InterpretedGrammar grammar = InterpretedGrammar.load(LANGUAGE, GRAMMAR);
+        ParserInterpreter parser = grammar.createParser(
+                new CommonTokenStream(grammar.createLexer(CharStreams.fromString("1 + (2 + 3)"))));
+        ParseTree tree = parser.parse(grammar.getPsiElementTypeFactory().getRuleNameToIndexMap().get("expr"));
+
+        assertEquals("(expr (term 1) + (term ( (expr (term 2) + (term 3)) )))", tree.toStringTree(parser));
+        assertEquals(0, parser.getNumberOfSyntaxErrors());
+    }
+
+    public void testLexerAdapterUsesElementTypesOfGrammar() throws Exception {
+        InterpretedGrammar grammar = InterpretedGrammar.load(LANGUAGE, GRAMMAR);
+        PsiElementTypeFactory factory = grammar.getPsiElementTypeFactory();
+        AntlrLexerAdapter lexer = grammar.createLexerAdapter();
+        lexer.start("1 + 2", 0, 5, 0);
+
+        List<Object> types = new ArrayList<>();
+        while (lexer.getTokenType() != null) {
+            types.add(lexer.getTokenType());
+            lexer.advance();
+        }
+        int plus = factory.getTokenNameToTypeMap().get("PLUS");
+        int integer = factory.getTokenNameToTypeMap().get("INT");
+        assertEquals(3, types.size());
+        assertSame(factory.getTokenIElementTypes().get(integer), types.get(0));
+        assertSame(factory.getTokenIElementTypes().get(plus), types.get(1));
+        assertSame(factory.getTokenIElementTypes().get(integer), types.get(2));
+    }
+
+    public void testLoadingSameTextReturnsCachedGrammar() throws Exception {
+        assertSame(InterpretedGrammar.load(LANGUAGE, GRAMMAR), InterpretedGrammar.load(LANGUAGE, GRAMMAR));
+    }
+
+    public void testReloadReusesUnchangedElementTypes() throws Exception {
+        PsiElementTypeFactory before = InterpretedGrammar.load(LANGUAGE, GRAMMAR).getPsiElementTypeFactory();
+        String edited = GRAMMAR.replace("(PLUS term)*", "((PLUS | MINUS) term)*") + "MINUS : '-' ;\n";
+        PsiElementTypeFactory after = InterpretedGrammar.load(LANGUAGE, edited).getPsiElementTypeFactory();
+
+        assertNotSame(before, after);
+        assertSame(before.getEofElementType(), after.getEofElementType());
+        for (int i = 0; i < before.getTokenIElementTypes().size(); i++) {
+            assertSame(before.getTokenIElementTypes().get(i), after.getTokenIElementTypes().get(i));
+        }
+        assertEquals(before.getTokenIElementTypes().size() + 1, after.getTokenIElementTypes().size());
+        assertEquals("MINUS", after.getTokenIElementTypes().get(after.getTokenIElementTypes().size() - 1).toString());
+        assertEquals(before.getRuleIElementTypes(), after.getRuleIElementTypes());
+    }
+
+    public void testReloadCreatesElementTypesForRenamedRules() throws Exception {
+        PsiElementTypeFactory before = InterpretedGrammar.load(LANGUAGE, GRAMMAR).getPsiElementTypeFactory();
+        String edited = GRAMMAR.replace("term", "atom");
+        PsiElementTypeFactory after = InterpretedGrammar.load(LANGUAGE, edited).getPsiElementTypeFactory();
+
+        assertSame(before.getRuleIElementTypes().get(0), after.getRuleIElementTypes().get(0));
+        assertNotSame(before.getRuleIElementTypes().get(1), after.getRuleIElementTypes().get(1));
+        assertEquals("atom", after.getRuleIElementTypes().get(1).toString());
+        assertEquals(1, after.getRuleIElementTypes().get(1).getRuleIndex());
+    }
+}
@@ -0,0 +1,85 @@
+package org.antlr.jetbrains.adapter.lexer;
+
+import java.io.File;
+import org.antlr.jetbrains.sample.parser.SampleLanguageElementTypes;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for tables generated by {@link PsiElementTypeFactoryGenerator},
+ * against the vocabulary and rule names of the generated parser.
+ */
+public class PsiElementTypeFactoryGeneratorTest {
+
+    private static final File GRAMMAR =
+            new File("src/test/antlr/org/antlr/jetbrains/sample/parser/SampleLanguage.g4");
+
+    @Test
+    public void vocabularyMatchesParser() throws Exception {
+        Vocabulary expected = SampleLanguageParser.VOCABULARY;
+        Vocabulary actual = SampleLanguageElementTypes.VOCABULARY;
+        Assert.assertEquals(expected.getMaxTokenType(), SampleLanguageElementTypes.MAX_TOKEN_TYPE);
+        Assert.assertEquals(expected.getMaxTokenType(), actual.getMaxTokenType());
+        for (int i = 0; i <= expected.getMaxTokenType(); i++) {
+            Assert.assertEquals(expected.getLiteralName(i), actual.getLiteralName(i));
+            Assert.assertEquals(expected.getSymbolicName(i), actual.getSymbolicName(i));
+            Assert.assertEquals(expected.getDisplayName(i), actual.getDisplayName(i));
+        }
+    }
+
+    @Test
+    public void ruleNamesMatchParser() throws Exception {
+        Assert.assertArrayEquals(SampleLanguageParser.ruleNames, SampleLanguageElementTypes.getRuleNames());
+        for (int i = 0; i < SampleLanguageParser.ruleNames.length; i++) {
+            Assert.assertEquals(i, SampleLanguageElementTypes.getRuleIndex(SampleLanguageParser.ruleNames[i]));
+        }
+        Assert.assertEquals(-1, SampleLanguageElementTypes.getRuleIndex("nosuchrule"));
+    }
+
+    @Test
+    public void tokenTypeLookupMatchesDisplayNames() throws Exception {
+        Vocabulary vocabulary = SampleLanguageParser.VOCABULARY;
+        for (int i = 0; i <= vocabulary.getMaxTokenType(); i++) {
+            String displayName = vocabulary.getDisplayName(i);
+            // the last token with a display name wins, like in PsiElementTypeFactory
+            int last = i;
+            for (int j = i + 1; j <= vocabulary.getMaxTokenType(); j++) {
+                if (displayName.equals(vocabulary.getDisplayName(j))) {
+                    last = j;
+                }
+            }
+            Assert.assertEquals(displayName, last, SampleLanguageElementTypes.getTokenType(displayName));
+        }
+        Assert.assertEquals(SampleLanguageParser.ID, SampleLanguageElementTypes.getTokenType("ID"));
+        Assert.assertEquals(SampleLanguageParser.LPAREN, SampleLanguageElementTypes.getTokenType("'('"));
+        Assert.assertEquals(Token.INVALID_TYPE, SampleLanguageElementTypes.getTokenType("NOSUCHTOKEN"));
+    }
+
+    @Test
+    public void generatedSourceIsStable() throws Exception {
+        PsiElementTypeFactoryGenerator generator = new PsiElementTypeFactoryGenerator(
+                PsiElementTypeFactoryGenerator.loadGrammar(GRAMMAR), "org.example", "ExampleElementTypes");
+        String source = generator.generate();
+
+        Assert.assertEquals(source, generator.generate());
+        Assert.assertTrue(source.contains("package org.example;\n"));
+        Assert.assertTrue(source.contains("public final class ExampleElementTypes {\n"));
+        Assert.assertTrue(source.contains("public static final int MAX_TOKEN_TYPE = "
+                + SampleLanguageParser.VOCABULARY.getMaxTokenType() + ";\n"));
+        Assert.assertTrue(source.contains("case \"function\":\n                return "
+                + SampleLanguageParser.RULE_function + ";\n"));
+        Assert.assertTrue(source.contains(".tokenTypeLookup(ExampleElementTypes::getTokenType)\n"));
+        Assert.assertTrue(source.contains(".ruleIndexLookup(ExampleElementTypes::getRuleIndex);\n"));
+    }
+
+    @Test
+    public void literalsAreEscaped() throws Exception {
+        Assert.assertEquals("null", PsiElementTypeFactoryGenerator.literal(null));
+        Assert.assertEquals("\"'\\\"'\"", PsiElementTypeFactoryGenerator.literal("'\"'"));
+        Assert.assertEquals("\"'\\\\n'\"", PsiElementTypeFactoryGenerator.literal("'\\n'"));
+        Assert.assertEquals("\"a\\tb\\u00e9\"", PsiElementTypeFactoryGenerator.literal("a\tb\u00e9"));
+    }
+}
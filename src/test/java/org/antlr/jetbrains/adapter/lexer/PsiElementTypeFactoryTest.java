@@ -0,0 +1,109 @@
+package org.antlr.jetbrains.adapter.lexer;
+
+import com.intellij.extapi.psi.ASTWrapperPsiElement;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.tree.CompositeElement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.ParsingTestCase;
+import java.util.HashMap;
+import java.util.Map;
+import org.antlr.jetbrains.adapter.psi.AntlrPsiNode;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.antlr.jetbrains.sample.psi.ArgdefSubtree;
+import org.antlr.jetbrains.sample.psi.BlockSubtree;
+import org.antlr.jetbrains.sample.psi.CallSubtree;
+import org.antlr.jetbrains.sample.psi.FunctionSubtree;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+
+/**
+ * Tests for PSI elements created by {@link PsiElementTypeFactory}.
+ */
+public class PsiElementTypeFactoryTest extends ParsingTestCase {
+
+    private static final SampleParserDefinition PARSER_DEFINITION =
+            new SampleParserDefinition();
+
+    public PsiElementTypeFactoryTest() {
+        super("", "Sample", PARSER_DEFINITION);
+    }
+
+    public void testElementsAreCreatedPerRule() throws Exception {
+        String code = loadFile("src/test/resources/test.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        Map<Integer, Class<? extends PsiElement>> expected = new HashMap<>();
+        expected.put(SampleLanguageParser.RULE_function, FunctionSubtree.class);
+        expected.put(SampleLanguageParser.RULE_vardef, VardefSubtree.class);
+        expected.put(SampleLanguageParser.RULE_formal_arg, ArgdefSubtree.class);
+        expected.put(SampleLanguageParser.RULE_block, BlockSubtree.class);
+        expected.put(SampleLanguageParser.RULE_call_expr, CallSubtree.class);
+        int unmapped = 0;
+        for (PsiElement node : PsiTreeUtil.findChildrenOfType(myFile, PsiElement.class)) {
+            if (!(node.getNode().getElementType() instanceof RuleIElementType)) {
+                continue;
+            }
+            int ruleIndex = ((RuleIElementType) node.getNode().getElementType()).getRuleIndex();
+            Class<? extends PsiElement> type = expected.get(ruleIndex);
+            if (type != null) {
+                assertSame(node.toString(), type, node.getClass());
+            } else {
+                assertSame(node.toString(), AntlrPsiNode.class, node.getClass());
+                unmapped++;
+            }
+        }
+        assertTrue(unmapped > 0);
+    }
+
+    public void testUnmappedRulesAndTokenRootsGetDefaultElement() throws Exception {
+        PsiElementTypeFactory factory = PsiElementTypeFactory.builder()
+                .language(SampleLanguage.INSTANCE)
+                .vocabulary(SampleLanguageParser.VOCABULARY)
+                .ruleNames(SampleLanguageParser.ruleNames)
+                .addPsiElement(SampleLanguageParser.RULE_vardef, VardefSubtree::new)
+                .defaultPsiElement(ASTWrapperPsiElement::new)
+                .build();
+        IElementType vardef = (IElementType) factory.getRuleIElementTypes().get(SampleLanguageParser.RULE_vardef);
+        IElementType expr = (IElementType) factory.getRuleIElementTypes().get(SampleLanguageParser.RULE_expr);
+        IElementType id = factory.getTokenIElementTypes().get(SampleLanguageParser.ID);
+
+        assertSame(VardefSubtree.class, factory.createElement(new CompositeElement(vardef)).getClass());
+        assertSame(ASTWrapperPsiElement.class, factory.createElement(new CompositeElement(expr)).getClass());
+        // e.g. the root of an identifier parsed for rename refactoring
+        assertSame(ASTWrapperPsiElement.class, factory.createElement(new CompositeElement(id)).getClass());
+        assertTrue(factory.isPreservedRule(SampleLanguageParser.RULE_vardef));
+        assertFalse(factory.isPreservedRule(SampleLanguageParser.RULE_expr));
+    }
+
+    public void testGeneratedTablesBackNameMaps() throws Exception {
+        PsiElementTypeFactory factory = SampleParserDefinition.PSI_ELEMENT_TYPE_FACTORY;
+        Map<String, Integer> ruleIndexes = factory.getRuleNameToIndexMap();
+        Map<String, Integer> tokenTypes = factory.getTokenNameToTypeMap();
+
+        assertEquals(Integer.valueOf(SampleLanguageParser.RULE_function), ruleIndexes.get("function"));
+        assertEquals(Integer.valueOf(SampleLanguageParser.ID), tokenTypes.get("ID"));
+        assertEquals(Integer.valueOf(SampleLanguageParser.LPAREN), tokenTypes.get("'('"));
+        assertNull(ruleIndexes.get("nosuchrule"));
+        assertNull(tokenTypes.get("NOSUCHTOKEN"));
+        assertEquals(SampleLanguageParser.ruleNames.length, ruleIndexes.size());
+        for (int i = 0; i < SampleLanguageParser.ruleNames.length; i++) {
+            assertEquals(Integer.valueOf(i), ruleIndexes.get(SampleLanguageParser.ruleNames[i]));
+        }
+    }
+
+    public void testNoDefaultElementFails() throws Exception {
+        PsiElementTypeFactory factory = PsiElementTypeFactory.create(SampleLanguage.INSTANCE,
+                SampleLanguageParser.VOCABULARY, SampleLanguageParser.ruleNames);
+        IElementType vardef = (IElementType) factory.getRuleIElementTypes().get(SampleLanguageParser.RULE_vardef);
+
+        try {
+            factory.createElement(new CompositeElement(vardef));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("vardef"));
+        }
+    }
+}
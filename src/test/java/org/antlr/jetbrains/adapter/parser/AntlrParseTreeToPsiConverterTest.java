@@ -0,0 +1,183 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.testFramework.ParsingTestCase;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.tree.ErrorNodeImpl;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+/**
+ * Tests for {@link AntlrParseTreeToPsiConverter}. Parse trees are built
+ * by hand and converted into a builder that records marker calls.
+ */
+public class AntlrParseTreeToPsiConverterTest extends ParsingTestCase {
+
+    private static final SampleParserDefinition PARSER_DEFINITION =
+            new SampleParserDefinition();
+
+    public AntlrParseTreeToPsiConverterTest() {
+        super("", "Sample", PARSER_DEFINITION);
+    }
+
+    public void testDeepChainIsConvertedWithoutRecursion() throws Exception {
+        int depth = 100_000;
+        ParserRuleContext root = new SampleLanguageParser.ScriptContext(null, -1);
+        ParserRuleContext ctx = root;
+        for (int i = 0; i < depth; i++) {
+            ctx = addRule(ctx, new SampleLanguageParser.ExprContext(ctx, -1));
+        }
+        addToken(ctx, SampleLanguageLexer.ID, "x");
+
+        List<String> events = new ArrayList<>();
+        AntlrParseTreeToPsiConverter converter = createConverter(events, TreeFlatteningPolicy.NONE);
+        converter.walk(root);
+
+        assertEquals(depth + 1, count(events, "mark"));
+        assertEquals(depth + 1, count(events, "done"));
+        assertEquals(1, count(events, "advance"));
+        assertEquals("done script", events.get(events.size() - 1));
+        assertTrue(converter.getMarkers().isEmpty());
+    }
+
+    public void testChainsAreCollapsed() throws Exception {
+        // script(vardef(var x = expr(primary(1))) EOF)
+        ParserRuleContext root = new SampleLanguageParser.ScriptContext(null, -1);
+        ParserRuleContext vardef = addRule(root, new SampleLanguageParser.VardefContext(root, -1));
+        addToken(vardef, SampleLanguageLexer.VAR, "var");
+        addToken(vardef, SampleLanguageLexer.ID, "x");
+        addToken(vardef, SampleLanguageLexer.EQUAL, "=");
+        ParserRuleContext expr = addRule(vardef, new SampleLanguageParser.ExprContext(vardef, -1));
+        ParserRuleContext primary = addRule(expr, new SampleLanguageParser.PrimaryContext(expr, -1));
+        addToken(primary, SampleLanguageLexer.INT, "1");
+        addToken(root, SampleLanguageLexer.EOF, "<EOF>");
+
+        List<String> events = new ArrayList<>();
+        createConverter(events, new ChainRuleFlatteningPolicy()).walk(root);
+
+        assertEquals(Arrays.asList(
+                "mark", "mark", "advance", "advance", "advance",
+                "mark", "advance", "done primary",
+                "done vardef", "advance", "done script"), events);
+    }
+
+    public void testPreservedRulesAreKept() throws Exception {
+        // block has a PSI element class, so it is kept although it is a chain
+        ParserRuleContext root = new SampleLanguageParser.ScriptContext(null, -1);
+        ParserRuleContext block = addRule(root, new SampleLanguageParser.BlockContext(root, -1));
+        ParserRuleContext statement = addRule(block, new SampleLanguageParser.StatementContext(block, -1));
+        ParserRuleContext expr = addRule(statement, new SampleLanguageParser.ExprContext(statement, -1));
+        ParserRuleContext primary = addRule(expr, new SampleLanguageParser.PrimaryContext(expr, -1));
+        addToken(primary, SampleLanguageLexer.ID, "x");
+
+        List<String> events = new ArrayList<>();
+        createConverter(events, new ChainRuleFlatteningPolicy()).walk(root);
+
+        assertEquals(Arrays.asList(
+                "mark", "mark", "mark", "advance", "done primary", "done block", "done script"), events);
+    }
+
+    public void testErrorNodeInCollapsedContext() throws Exception {
+        // script(statement(expr(primary(x) <missing ID>)) EOF); statement is a chain
+        ParserRuleContext root = new SampleLanguageParser.ScriptContext(null, -1);
+        ParserRuleContext statement = addRule(root, new SampleLanguageParser.StatementContext(root, -1));
+        ParserRuleContext expr = addRule(statement, new SampleLanguageParser.ExprContext(statement, -1));
+        ParserRuleContext primary = addRule(expr, new SampleLanguageParser.PrimaryContext(expr, -1));
+        addToken(primary, SampleLanguageLexer.ID, "x");
+        ErrorNodeImpl missing = new ErrorNodeImpl(new CommonToken(SampleLanguageLexer.ID, "<missing ID>"));
+        missing.parent = expr;
+        expr.addErrorNode(missing);
+        addToken(root, SampleLanguageLexer.EOF, "<EOF>");
+
+        List<String> events = new ArrayList<>();
+        createConverter(events, new ChainRuleFlatteningPolicy()).walk(root);
+
+        assertEquals(Arrays.asList(
+                "mark", "mark", "mark", "advance", "done primary",
+                "mark", "error <missing ID>", "done expr",
+                "advance", "done script"), events);
+    }
+
+    public void testContextWithErrorIsNotCollapsed() throws Exception {
+        ParserRuleContext root = new SampleLanguageParser.ScriptContext(null, -1);
+        ParserRuleContext statement = addRule(root, new SampleLanguageParser.StatementContext(root, -1));
+        statement.exception = new RecognitionException(null, null, null);
+        ParserRuleContext expr = addRule(statement, new SampleLanguageParser.ExprContext(statement, -1));
+        ParserRuleContext primary = addRule(expr, new SampleLanguageParser.PrimaryContext(expr, -1));
+        addToken(primary, SampleLanguageLexer.ID, "x");
+
+        List<String> events = new ArrayList<>();
+        createConverter(events, new ChainRuleFlatteningPolicy()).walk(root);
+
+        assertEquals(Arrays.asList(
+                "mark", "mark", "mark", "advance", "done primary", "error syntax error", "done script"), events);
+    }
+
+    // S U P P O R T
+
+    private static <T extends ParserRuleContext> T addRule(ParserRuleContext parent, T child) {
+        parent.addChild(child);
+        return child;
+    }
+
+    private static void addToken(ParserRuleContext parent, int type, String text) {
+        TerminalNodeImpl node = new TerminalNodeImpl(new CommonToken(type, text));
+        node.parent = parent;
+        parent.addChild(node);
+    }
+
+    private static AntlrParseTreeToPsiConverter createConverter(List<String> events, TreeFlatteningPolicy policy) {
+        SampleLanguageParser parser = new SampleLanguageParser(null);
+        parser.addErrorListener(new SyntaxErrorListener());
+        return new AntlrParseTreeToPsiConverter(SampleLanguage.INSTANCE, parser,
+                SampleParserDefinition.PSI_ELEMENT_TYPE_FACTORY, recordingBuilder(events),
+                new DefaultSyntaxErrorFormatter(), policy);
+    }
+
+    private static int count(List<String> events, String prefix) {
+        int count = 0;
+        for (String event : events) {
+            if (event.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builder that records "mark", "advance" and "done rule" or
+     * "error message" of markers; nothing else is expected to be called.
+     */
+    private static PsiBuilder recordingBuilder(List<String> events) {
+        return proxy(PsiBuilder.class, (builder, method, args) -> {
+            switch (method.getName()) {
+                case "mark":
+                    events.add("mark");
+                    return proxy(PsiBuilder.Marker.class, (marker, markerMethod, markerArgs) -> {
+                        events.add(markerMethod.getName() + " " + markerArgs[0]);
+                        return null;
+                    });
+                case "advanceLexer":
+                    events.add("advance");
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+}
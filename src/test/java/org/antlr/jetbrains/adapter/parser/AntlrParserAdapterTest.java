@@ -0,0 +1,106 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.ParsingTestCase;
+import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+
+/**
+ * Tests for start rules of {@link AntlrParserAdapter}.
+ */
+public class AntlrParserAdapterTest extends ParsingTestCase {
+
+    private static final SampleParserDefinition PARSER_DEFINITION =
+            new SampleParserDefinition();
+    private static final PsiElementTypeFactory FACTORY = SampleParserDefinition.PSI_ELEMENT_TYPE_FACTORY;
+
+    public AntlrParserAdapterTest() {
+        super("", "Sample", PARSER_DEFINITION);
+    }
+
+    public void testStartRuleIsChosenByRoot() throws Exception {
+        AntlrParserAdapter adapter = createAdapter()
+                .registerFileStartRule("script")
+                .registerDefaultStartRule("primary")
+                .registerStartRule(SampleParserDefinition.ID, "expr")
+                .registerStartRule(ruleType(SampleLanguageParser.RULE_block), "statement");
+
+        assertEquals(SampleLanguageParser.RULE_script, adapter.getStartRuleIndex(SampleParserDefinition.FILE));
+        // registered roots win over rules of their own
+        assertEquals(SampleLanguageParser.RULE_expr, adapter.getStartRuleIndex(SampleParserDefinition.ID));
+        assertEquals(SampleLanguageParser.RULE_statement,
+                adapter.getStartRuleIndex(ruleType(SampleLanguageParser.RULE_block)));
+        assertEquals(SampleLanguageParser.RULE_vardef,
+                adapter.getStartRuleIndex(ruleType(SampleLanguageParser.RULE_vardef)));
+        assertEquals(SampleLanguageParser.RULE_primary,
+                adapter.getStartRuleIndex(tokenType(SampleLanguageLexer.STRING)));
+    }
+
+    public void testRootsWithoutStartRule() throws Exception {
+        AntlrParserAdapter adapter = createAdapter();
+
+        assertEquals(-1, adapter.getStartRuleIndex(SampleParserDefinition.FILE));
+        assertEquals(-1, adapter.getStartRuleIndex(SampleParserDefinition.ID));
+        assertEquals(SampleLanguageParser.RULE_vardef,
+                adapter.getStartRuleIndex(ruleType(SampleLanguageParser.RULE_vardef)));
+    }
+
+    public void testParseFromRuleOfRoot() throws Exception {
+        IElementType vardef = ruleType(SampleLanguageParser.RULE_vardef);
+        ASTNode root = createAdapter().parse(vardef, createBuilder("var x = 1"));
+
+        assertSame(vardef, root.getElementType());
+        assertEquals("var x = 1", root.getText());
+    }
+
+    public void testParseWithoutStartRuleFails() throws Exception {
+        PsiBuilder builder = createBuilder("\"s\"");
+        try {
+            createAdapter().parse(tokenType(SampleLanguageLexer.STRING), builder);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No start rule registered for"));
+        }
+        // the builder was rolled back
+        assertEquals(0, builder.getCurrentOffset());
+    }
+
+    public void testUnknownRuleNameIsRejected() throws Exception {
+        AntlrParserAdapter adapter = createAdapter();
+        try {
+            adapter.registerFileStartRule("nosuchrule");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("nosuchrule isn't a valid rule name", e.getMessage());
+        }
+        try {
+            adapter.registerStartRule(SampleParserDefinition.ID, "nosuchrule");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("nosuchrule isn't a valid rule name", e.getMessage());
+        }
+    }
+
+    private static AntlrParserAdapter createAdapter() {
+        return new AntlrParserAdapter(SampleLanguage.INSTANCE, new SampleLanguageParser(null), FACTORY);
+    }
+
+    private static IElementType ruleType(int ruleIndex) {
+        return (IElementType) FACTORY.getRuleIElementTypes().get(ruleIndex);
+    }
+
+    private static IElementType tokenType(int tokenType) {
+        return FACTORY.getTokenIElementTypes().get(tokenType);
+    }
+
+    private PsiBuilder createBuilder(String text) {
+        return PsiBuilderFactory.getInstance().createBuilder(PARSER_DEFINITION,
+                PARSER_DEFINITION.createLexer(getProject()), text);
+    }
+}
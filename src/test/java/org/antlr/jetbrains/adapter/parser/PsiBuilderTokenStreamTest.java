@@ -0,0 +1,127 @@
+package org.antlr.jetbrains.adapter.parser;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.psi.PsiErrorElement;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.ParsingTestCase;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Tests for {@link PsiBuilderTokenStream}.
+ */
+public class PsiBuilderTokenStreamTest extends ParsingTestCase {
+
+    private static final SampleParserDefinition PARSER_DEFINITION =
+            new SampleParserDefinition();
+
+    public PsiBuilderTokenStreamTest() {
+        super("", "Sample", PARSER_DEFINITION);
+    }
+
+    public void testSeekWithinMarkedWindow() throws Exception {
+        PsiBuilder builder = createBuilder("var x = 1 // one\nx = 2");
+        PsiBuilder.Marker rollbackMarker = builder.mark();
+        PsiBuilderTokenStream tokens = new PsiBuilderTokenStream(builder);
+
+        assertEquals(SampleLanguageParser.VAR, tokens.LA(1));
+        int mark = tokens.mark();
+        int index = tokens.index();
+        Token start = tokens.LT(1);
+        tokens.consume();
+        tokens.consume();
+        assertEquals("=", tokens.LT(1).getText());
+        assertEquals("x", tokens.LT(-1).getText());
+        tokens.seek(index);
+        assertSame(start, tokens.LT(1));
+        tokens.release(mark);
+
+        // comments and whitespace are skipped by the builder
+        for (int i = 0; i < 4; i++) {
+            tokens.consume();
+        }
+        Token x = tokens.LT(1);
+        assertEquals(SampleLanguageParser.ID, x.getType());
+        assertEquals(17, x.getStartIndex());
+        // text is taken from the builder, including what lies between tokens
+        assertEquals("var x = 1 // one\nx", tokens.getText(start, x));
+
+        rollbackMarker.rollbackTo();
+        assertEquals(0, builder.getCurrentOffset());
+        assertEquals("var", builder.getTokenText());
+    }
+
+    public void testParseThroughStream() throws Exception {
+        PsiBuilder builder = createBuilder("var x = 1\nx = x + 2\nprint(x)\n");
+        PsiBuilder.Marker rollbackMarker = builder.mark();
+        SampleLanguageParser parser = new SampleLanguageParser(new PsiBuilderTokenStream(builder));
+        List<String> errors = collectErrors(parser);
+        ParserRuleContext tree = parser.script();
+        rollbackMarker.rollbackTo();
+
+        assertEquals(0, errors.size());
+        assertEquals("(script (vardef var x = (expr (primary 1))) "
+                        + "(statement x = (expr (expr (primary x)) (operator +) (expr (primary 2)))) "
+                        + "(statement print ( (expr (primary x)) )) <EOF>)",
+                tree.toStringTree(parser));
+        assertEquals(0, builder.getCurrentOffset());
+    }
+
+    public void testErrorRecoveryThroughStream() throws Exception {
+        PsiBuilder builder = createBuilder("var x = \nvar y = 1\n");
+        PsiBuilder.Marker rollbackMarker = builder.mark();
+        PsiBuilderTokenStream tokens = new PsiBuilderTokenStream(builder);
+        SampleLanguageParser parser = new SampleLanguageParser(tokens);
+        List<String> errors = collectErrors(parser);
+        ParserRuleContext tree = parser.script();
+        rollbackMarker.rollbackTo();
+
+        assertFalse(errors.isEmpty());
+        String treeText = tree.toStringTree(parser);
+        assertTrue(treeText, treeText.contains("(vardef var y = (expr (primary 1)))"));
+        assertEquals("var x = \nvar y = 1\n", tokens.getText(tree));
+        assertEquals("var", builder.getTokenText());
+    }
+
+    public void testErrorRecoveryThroughParserAdapter() throws Exception {
+        String code = "var x = \nvar y = 1\nfunc f() { x = }\nvar z = 2\n";
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        assertEquals(code, myFile.getText());
+        assertFalse(PsiTreeUtil.findChildrenOfType(myFile, PsiErrorElement.class).isEmpty());
+        List<String> vardefs = new ArrayList<>();
+        for (VardefSubtree vardef : PsiTreeUtil.findChildrenOfType(myFile, VardefSubtree.class)) {
+            vardefs.add(vardef.getText());
+        }
+        assertTrue(vardefs.toString(), vardefs.contains("var y = 1"));
+        assertTrue(vardefs.toString(), vardefs.contains("var z = 2"));
+    }
+
+    private PsiBuilder createBuilder(String text) {
+        return PsiBuilderFactory.getInstance().createBuilder(PARSER_DEFINITION,
+                PARSER_DEFINITION.createLexer(getProject()), text);
+    }
+
+    private static List<String> collectErrors(SampleLanguageParser parser) {
+        List<String> errors = new ArrayList<>();
+        parser.removeErrorListeners();
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                errors.add(msg);
+            }
+        });
+        return errors;
+    }
+}
@@ -0,0 +1,99 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.stubs.StubElement;
+import com.intellij.psi.util.PsiTreeUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.psi.BlockSubtree;
+import org.antlr.jetbrains.sample.psi.FunctionSubtree;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tests for children cached by {@link AntlrPsiNode} and
+ * {@link AntlrStubBasedPsiNode}.
+ */
+public class AntlrPsiNodeTest extends SampleFixtureTestCase {
+
+    private static final String NESTED_BLOCK =
+            "func f() {\n"
+            + "    {\n"
+            + "        var y = 2\n"
+            + "    }\n"
+            + "}\n";
+
+    public void testChildrenAreUpdatedByEdits() throws Exception {
+        PsiFile file = createSampleFile(NESTED_BLOCK);
+        BlockSubtree nested = new ArrayList<>(PsiTreeUtil.findChildrenOfType(file, BlockSubtree.class)).get(1);
+        PsiElement statement = nested.getParent();
+        PsiElement[] children = statement.getChildren();
+        assertSame(children, statement.getChildren());
+        assertEquals(1, children.length);
+        assertSame(nested, children[0]);
+
+        String text = NESTED_BLOCK.replace("var y = 2\n", "var y = 2\n        y = 3\n");
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, text);
+
+        assertEquals(text, file.getText());
+        assertTrue(statement.isValid());
+        children = statement.getChildren();
+        assertEquals(1, children.length);
+        assertNotSame(nested, children[0]);
+        assertTrue(children[0].isValid());
+        assertEquals("{\n        var y = 2\n        y = 3\n    }", children[0].getText());
+    }
+
+    public void testChildrenAreUpdatedWhenAstIsReloaded() throws Exception {
+        ASTNode first = parseFunction("func f(x:int) { var y = x }");
+        ASTNode second = parseFunction("func f(x:int) { var y = x }");
+        ReboundNode element = new ReboundNode(first);
+        PsiElement[] children = element.getChildren();
+        assertSame(children, element.getChildren());
+        assertParent(first, children);
+
+        // same element bound to a freshly loaded AST
+        element.node = second;
+        PsiElement[] reloaded = element.getChildren();
+        assertEquals(children.length, reloaded.length);
+        assertParent(second, reloaded);
+    }
+
+    private ASTNode parseFunction(String text) {
+        PsiFile file = PsiFileFactory.getInstance(getProject())
+                .createFileFromText("a.sample", SampleLanguage.INSTANCE, text);
+        return PsiTreeUtil.findChildOfType(file, FunctionSubtree.class).getNode();
+    }
+
+    private static void assertParent(ASTNode parent, PsiElement[] children) {
+        List<String> texts = new ArrayList<>();
+        for (PsiElement child : children) {
+            assertSame(parent, child.getNode().getTreeParent());
+            texts.add(child.getText());
+        }
+        assertEquals("[func, f, (, x:int, ), { var y = x }]", texts.toString());
+    }
+
+    /**
+     * Stub based element whose AST node can be replaced, like when its
+     * file's AST is loaded again.
+     */
+    private static final class ReboundNode extends AntlrStubBasedPsiNode<StubElement<?>> {
+        private ASTNode node;
+
+        ReboundNode(ASTNode node) {
+            super(node);
+            this.node = node;
+        }
+
+        @NotNull
+        @Override
+        public ASTNode getNode() {
+            return node;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+
+/**
+ * Tests for {@link FragmentFileCache}.
+ */
+public class FragmentFileCacheTest extends SampleFixtureTestCase {
+
+    private FragmentFileCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = FragmentFileCache.getInstance(getProject(), SampleLanguage.INSTANCE);
+        cache.invalidate();
+    }
+
+    public void testHitReturnsIndependentCopy() throws Exception {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        PsiFile first = cache.createFile("var x = 1\n");
+        PsiFile second = cache.createFile("var x = 1\n");
+
+        assertEquals(misses + 1, cache.getMissCount());
+        assertEquals(hits + 1, cache.getHitCount());
+        assertNotSame(first, second);
+        assertEquals("var x = 1\n", second.getText());
+
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(first, VardefSubtree.class);
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> vardef.delete());
+
+        assertEquals("\n", first.getText());
+        assertEquals("var x = 1\n", second.getText());
+        PsiFile third = cache.createFile("var x = 1\n");
+        assertEquals("var x = 1\n", third.getText());
+        assertNotNull(PsiTreeUtil.findChildOfType(third, VardefSubtree.class));
+        assertEquals(hits + 2, cache.getHitCount());
+    }
+
+    public void testHitCopiesParsedTree() throws Exception {
+        PsiFile first = cache.createFile("func f() {\n    var x = 1\n}\n");
+        PsiFile second = cache.createFile("func f() {\n    var x = 1\n}\n");
+
+        // copies clone the tree of the cached file, so they are parsed already
+        assertTrue(((PsiFileImpl) first).isContentsLoaded());
+        assertTrue(((PsiFileImpl) second).isContentsLoaded());
+        assertNotSame(first.getNode(), second.getNode());
+        assertNotSame(PsiTreeUtil.findChildOfType(first, VardefSubtree.class),
+                PsiTreeUtil.findChildOfType(second, VardefSubtree.class));
+        assertEquals(DebugUtil.psiToString(first, false), DebugUtil.psiToString(second, false));
+    }
+
+    public void testDifferentTextIsMiss() throws Exception {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        cache.createFile("var x = 1\n");
+        PsiFile other = cache.createFile("var y = 2\n");
+
+        assertEquals("var y = 2\n", other.getText());
+        assertEquals(misses + 2, cache.getMissCount());
+        assertEquals(hits, cache.getHitCount());
+    }
+
+    public void testLongTextIsNotCached() throws Exception {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= FragmentFileCache.MAX_FRAGMENT_LENGTH) {
+            text.append("var x = 1\n");
+        }
+        PsiFile first = cache.createFile(text.toString());
+        PsiFile second = cache.createFile(text.toString());
+
+        assertNotSame(first, second);
+        assertEquals(text.toString(), second.getText());
+        assertEquals(misses, cache.getMissCount());
+        assertEquals(hits, cache.getHitCount());
+    }
+
+    public void testInvalidateDropsFiles() throws Exception {
+        cache.createFile("var x = 1\n");
+        long misses = cache.getMissCount();
+        cache.invalidate();
+        cache.createFile("var x = 1\n");
+
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    public void testTreesCreateFileUsesCache() throws Exception {
+        assertSame(cache, FragmentFileCache.getInstance(getProject(), SampleLanguage.INSTANCE));
+        long hits = cache.getHitCount();
+        Trees.createFile(getProject(), SampleLanguage.INSTANCE, "var x = 1\n");
+        Trees.createFile(getProject(), SampleLanguage.INSTANCE, "var x = 1\n");
+
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+}
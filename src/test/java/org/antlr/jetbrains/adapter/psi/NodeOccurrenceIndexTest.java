@@ -0,0 +1,29 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.google.common.collect.Iterators;
+import com.intellij.psi.PsiFile;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+
+/**
+ * Tests for {@link NodeOccurrenceIndex}.
+ */
+public class NodeOccurrenceIndexTest extends SampleFixtureTestCase {
+
+    public void testIndexIsCachedUntilFileChanges() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        NodeOccurrenceIndex index = NodeOccurrenceIndex.getInstance(file);
+        assertSame(index, NodeOccurrenceIndex.getInstance(file));
+        assertEquals(1, Iterators.size(index.findRuleNodes(file.getNode(), SampleLanguageParser.RULE_vardef)));
+        assertEquals(0, Iterators.size(index.findTokenNodes(file.getNode(), SampleLanguageLexer.STRING)));
+
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, "var x = 1\nvar y = \"s\"\n");
+
+        NodeOccurrenceIndex rebuilt = NodeOccurrenceIndex.getInstance(file);
+        assertNotSame(index, rebuilt);
+        assertEquals(2, Iterators.size(rebuilt.findRuleNodes(file.getNode(), SampleLanguageParser.RULE_vardef)));
+        assertEquals(1, Iterators.size(rebuilt.findTokenNodes(file.getNode(), SampleLanguageLexer.STRING)));
+    }
+}
@@ -0,0 +1,69 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.PsiTreeUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.antlr.jetbrains.sample.psi.FunctionSubtree;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+
+/**
+ * Tests for {@link SubtreeTypes}.
+ */
+public class SubtreeTypesTest extends SampleFixtureTestCase {
+
+    public void testSummariesAreKeptForAllNodes() throws Exception {
+        PsiFile file = createSampleFile(loadFile("src/test/resources/bubblesort.sample"));
+        FunctionSubtree function = PsiTreeUtil.findChildOfType(file, FunctionSubtree.class);
+        SubtreeTypes types = SubtreeTypes.of(function);
+        assertTrue(types.containsRule(SampleLanguageParser.RULE_function));
+        assertTrue(types.containsRule(SampleLanguageParser.RULE_vardef));
+        assertTrue(types.containsToken(SampleLanguageLexer.WHILE));
+        assertFalse(types.containsToken(SampleLanguageLexer.FLOAT));
+        // one pass summarized the nodes below, children before parents
+        for (PsiElement node : Trees.getDescendants(function)) {
+            if (node instanceof SubtreeTypes.Owner) {
+                assertNotNull(node.toString(), ((SubtreeTypes.Owner) node).getSubtreeTypes());
+            }
+        }
+    }
+
+    public void testSearchSkipsSubtreesWithoutRule() throws Exception {
+        PsiFile file = createSampleFile(loadFile("src/test/resources/test.sample"));
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+        assertEquals("var y = x", vardef.getText());
+        assertFalse(SubtreeTypes.of(vardef).containsRule(SampleLanguageParser.RULE_call_expr));
+
+        for (int ruleIndex = 0; ruleIndex < SampleLanguageParser.ruleNames.length; ruleIndex++) {
+            List<PsiElement> expected = new ArrayList<>();
+            for (PsiElement node : Trees.getDescendants(file)) {
+                if (node.getNode().getElementType() instanceof RuleIElementType
+                        && ((RuleIElementType) node.getNode().getElementType()).getRuleIndex() == ruleIndex) {
+                    expected.add(node);
+                }
+            }
+            assertEquals(SampleLanguageParser.ruleNames[ruleIndex], expected,
+                    Trees.findAllRuleNodes(file, ruleIndex));
+        }
+    }
+
+    public void testSubtreeChangeDropsSummaries() throws Exception {
+        PsiFile file = createSampleFile("func f() {\n    var x = 1\n}\n");
+        FunctionSubtree function = PsiTreeUtil.findChildOfType(file, FunctionSubtree.class);
+        assertFalse(SubtreeTypes.of(function).containsToken(SampleLanguageLexer.STRING));
+
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, "func f() {\n    var x = \"s\"\n}\n");
+
+        // the function survived the edit, which reparsed its block
+        assertSame(function, PsiTreeUtil.findChildOfType(file, FunctionSubtree.class));
+        assertNull(((SubtreeTypes.Owner) function).getSubtreeTypes());
+        assertTrue(SubtreeTypes.of(function).containsToken(SampleLanguageLexer.STRING));
+        assertEquals(1, Trees.findAllTokenNodes(function, SampleLanguageLexer.STRING).size());
+    }
+}
@@ -0,0 +1,246 @@
+package org.antlr.jetbrains.adapter.psi;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiErrorElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.DummyHolder;
+import com.intellij.psi.util.PsiTreeUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.psi.BlockSubtree;
+import org.antlr.jetbrains.sample.psi.FunctionSubtree;
+import org.antlr.jetbrains.sample.psi.VardefSubtree;
+
+/**
+ * Tests for {@link Trees}.
+ */
+public class TreesTest extends SampleFixtureTestCase {
+
+    private static final String NESTED_BLOCK =
+            "func f() {\n"
+            + "    {\n"
+            + "        var y = 2\n"
+            + "    }\n"
+            + "    return y\n"
+            + "}\n";
+
+    public void testReplaceInNestedBlock() throws Exception {
+        PsiFile file = createSampleFile(NESTED_BLOCK);
+        FunctionSubtree function = PsiTreeUtil.findChildOfType(file, FunctionSubtree.class);
+        String text = NESTED_BLOCK.replace("var y = 2\n", "var y = 2\n        y = 3\n");
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, text);
+
+        assertEquals(text, file.getText());
+        // only the nested block was parsed again
+        assertTrue(function.isValid());
+        assertSame(function, PsiTreeUtil.findChildOfType(file, FunctionSubtree.class));
+        List<BlockSubtree> blocks = new ArrayList<>(PsiTreeUtil.findChildrenOfType(file, BlockSubtree.class));
+        assertEquals(2, blocks.size());
+        BlockSubtree nested = blocks.get(1);
+        assertEquals("{", nested.getFirstChild().getText());
+        assertFalse(nested.getParent() instanceof BlockSubtree);
+        assertEquals("{\n        var y = 2\n        y = 3\n    }", nested.getText());
+        assertFalse(PsiTreeUtil.hasErrorElements(file));
+    }
+
+    public void testReplaceWholeFile() throws Exception {
+        PsiFile file = createSampleFile("var x = 1");
+        String text = "func g() { }";
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, text);
+
+        assertEquals(text, file.getText());
+        assertNotNull(PsiTreeUtil.findChildOfType(file, FunctionSubtree.class));
+        assertNull(PsiTreeUtil.findChildOfType(file, VardefSubtree.class));
+        assertFalse(PsiTreeUtil.hasErrorElements(file));
+    }
+
+    public void testReplaceMakingSubtreeInvalid() throws Exception {
+        PsiFile file = createSampleFile(NESTED_BLOCK);
+        String text = NESTED_BLOCK.replace("var y = 2\n", "var y = 2\n        var = \n");
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, text);
+
+        // the change is made in the document and the file reparsed, errors included
+        assertEquals(text, file.getText());
+        assertNotNull(PsiTreeUtil.findChildOfType(file, PsiErrorElement.class));
+        for (VardefSubtree vardef : PsiTreeUtil.findChildrenOfType(file, VardefSubtree.class)) {
+            assertFalse(vardef.getFirstChild() instanceof VardefSubtree);
+        }
+    }
+
+    public void testReplaceWithTokensLeftOverBySubtreeRule() throws Exception {
+        PsiFile file = createSampleFile(NESTED_BLOCK.replace("= 2\n", "= 23\n"));
+        // the smallest subtree around the change is the primary "23"; parsed
+        // as a primary, its new text leaves the assignment unconsumed
+        String text = NESTED_BLOCK.replace("= 2\n", "= 2 y = 3\n");
+        Trees.replacePsiFileFromText(getProject(), SampleLanguage.INSTANCE, file, text);
+
+        assertEquals(text, file.getText());
+        assertFalse(PsiTreeUtil.hasErrorElements(file));
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+        assertEquals("var y = 2", vardef.getText());
+    }
+
+    public void testEnclosingSubtreeMatchesPostorderSearch() throws Exception {
+        PsiFile file = createSampleFile(loadFile("src/test/resources/test.sample"));
+        int length = file.getTextLength();
+        for (int start = -1; start <= length; start++) {
+            for (int stop = start; stop <= length; stop++) {
+                assertSame(start + ".." + stop, findEnclosingInPostorder(file, start, stop),
+                        Trees.getRootOfSubtreeEnclosingRegion(file, start, stop));
+            }
+        }
+    }
+
+    /**
+     * The search that getRootOfSubtreeEnclosingRegion replaced: the first
+     * rule node in postorder whose range contains the region.
+     */
+    private static PsiElement findEnclosingInPostorder(PsiElement node, int startCharIndex, int stopCharIndex) {
+        TextRange r = node.getTextRange();
+        if (startCharIndex < r.getStartOffset() || stopCharIndex >= r.getEndOffset()) {
+            return null;
+        }
+        for (PsiElement child : node.getChildren()) {
+            PsiElement found = findEnclosingInPostorder(child, startCharIndex, stopCharIndex);
+            if (found != null) {
+                return found;
+            }
+        }
+        return node.getNode().getElementType() instanceof RuleIElementType ? node : null;
+    }
+
+    public void testWalkVisitsNodesInPreorderAndPostorder() throws Exception {
+        PsiFile file = createSampleFile("var x = /* one */ 1\n");
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+        List<String> events = new ArrayList<>();
+
+        assertTrue(Trees.walk(vardef, recorder(events, null, null)));
+
+        // comments and whitespace are not visited
+        assertEquals("[enter vardef, enter var, exit var, enter x, exit x, enter =, exit =, "
+                + "enter expr, enter primary, enter 1, exit 1, exit primary, exit expr, exit vardef]",
+                events.toString());
+    }
+
+    public void testWalkSkipsChildren() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+        List<String> events = new ArrayList<>();
+
+        assertTrue(Trees.walk(vardef, recorder(events, "enter expr", Trees.Action.SKIP_CHILDREN)));
+
+        assertEquals("[enter vardef, enter var, exit var, enter x, exit x, enter =, exit =, "
+                + "enter expr, exit expr, exit vardef]", events.toString());
+    }
+
+    public void testWalkStops() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        VardefSubtree vardef = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+        List<String> events = new ArrayList<>();
+
+        assertFalse(Trees.walk(vardef, recorder(events, "enter =", Trees.Action.STOP)));
+        assertEquals("[enter vardef, enter var, exit var, enter x, exit x, enter =]", events.toString());
+
+        events.clear();
+        assertFalse(Trees.walk(vardef, recorder(events, "exit x", Trees.Action.STOP)));
+        assertEquals("[enter vardef, enter var, exit var, enter x, exit x]", events.toString());
+    }
+
+    public void testWalkMatchesRecursiveTraversal() throws Exception {
+        PsiFile file = createSampleFile(loadFile("src/test/resources/bubblesort.sample"));
+        List<String> expected = new ArrayList<>();
+        traverse(file, expected);
+        List<String> events = new ArrayList<>();
+
+        assertTrue(Trees.walk(file, recorder(events, null, null)));
+
+        assertEquals(expected, events);
+    }
+
+    /**
+     * Returns visitor that records events and answers {@code action} to
+     * the given event, {@link Trees.Action#CONTINUE} to all others.
+     */
+    private static Trees.Visitor recorder(List<String> events, String event, Trees.Action action) {
+        return new Trees.Visitor() {
+            @Override
+            public Trees.Action enter(PsiElement node) {
+                return record("enter " + describe(node));
+            }
+
+            @Override
+            public Trees.Action exit(PsiElement node) {
+                return record("exit " + describe(node));
+            }
+
+            private Trees.Action record(String e) {
+                events.add(e);
+                return e.equals(event) ? action : Trees.Action.CONTINUE;
+            }
+        };
+    }
+
+    private static void traverse(PsiElement node, List<String> events) {
+        events.add("enter " + describe(node));
+        for (PsiElement child : Trees.getChildren(node)) {
+            traverse(child, events);
+        }
+        events.add("exit " + describe(node));
+    }
+
+    private static String describe(PsiElement node) {
+        if (node instanceof PsiFile) {
+            return "file";
+        }
+        return node.getNode().getElementType() instanceof RuleIElementType
+                ? node.getNode().getElementType().toString()
+                : node.getText();
+    }
+
+    public void testLeafOfSingleTokenIsCreatedWithoutParsing() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        VardefSubtree context = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+
+        PsiElement leaf = Trees.createLeafFromText(getProject(), SampleLanguage.INSTANCE, context, "foo",
+                SampleParserDefinition.ID);
+
+        assertEquals("foo", leaf.getText());
+        assertSame(SampleParserDefinition.ID, leaf.getNode().getElementType());
+        assertEmpty(leaf.getChildren());
+        // the leaf is the only child of a holder, there is no parsed tree around it
+        assertTrue(leaf.getParent() instanceof DummyHolder);
+        assertSame(leaf.getNode(), leaf.getParent().getNode().getFirstChildNode());
+        assertSame(context, leaf.getParent().getContext());
+    }
+
+    public void testLeafOfSeveralTokensIsParsed() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        VardefSubtree context = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+
+        PsiElement leaf = Trees.createLeafFromText(getProject(), SampleLanguage.INSTANCE, context, "foo bar",
+                SampleParserDefinition.ID);
+
+        // parsed from the default start rule; the first leaf is returned
+        assertEquals("foo", leaf.getText());
+        assertSame(SampleParserDefinition.ID, leaf.getNode().getElementType());
+        assertFalse(leaf.getParent() instanceof DummyHolder);
+    }
+
+    public void testLeafOfOtherTokenTypeIsParsed() throws Exception {
+        PsiFile file = createSampleFile("var x = 1\n");
+        VardefSubtree context = PsiTreeUtil.findChildOfType(file, VardefSubtree.class);
+
+        PsiElement leaf = Trees.createLeafFromText(getProject(), SampleLanguage.INSTANCE, context, "42",
+                SampleParserDefinition.ID);
+
+        assertEquals("42", leaf.getText());
+        // the lexer decides the type of the token, not the requested type
+        assertNotSame(SampleParserDefinition.ID, leaf.getNode().getElementType());
+        assertFalse(leaf.getParent() instanceof DummyHolder);
+    }
+}
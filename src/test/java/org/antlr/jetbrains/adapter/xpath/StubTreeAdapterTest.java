@@ -0,0 +1,83 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+import org.antlr.jetbrains.sample.psi.FunctionSubtree;
+
+/**
+ * Tests for evaluation of stub-backed paths with {@link StubTreeAdapter}.
+ */
+public class StubTreeAdapterTest extends SampleFixtureTestCase {
+
+    private static final String CODE = "func f() {\n"
+            + "    var x = 1\n"
+            + "}\n"
+            + "func g(y:int) { }\n"
+            + "var z = 2\n"
+            + "func h() { }\n";
+
+    public void testStubBackedPathDoesNotLoadAst() throws Exception {
+        PsiFile file = myFixture.addFileToProject("a.sample", CODE);
+        XPath functions = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function");
+        XPath named = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function[@name='g']");
+        assertFalse(((PsiFileImpl) file).isContentsLoaded());
+
+        List<PsiElement> fromStubs = new ArrayList<>(functions.evaluate(file));
+        List<PsiElement> namedFromStubs = new ArrayList<>(named.evaluate(file));
+
+        assertFalse(((PsiFileImpl) file).isContentsLoaded());
+        assertEquals("[f, g, h]", names(fromStubs).toString());
+        assertEquals("[g]", names(namedFromStubs).toString());
+        // functions are still known by their stubs
+        assertNotNull(((FunctionSubtree) fromStubs.get(0)).getStub());
+    }
+
+    public void testStubBackedPathMatchesAstPath() throws Exception {
+        PsiFile file = myFixture.addFileToProject("a.sample", CODE);
+        XPath functions = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function");
+        XPath named = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function[@name='g']");
+        List<PsiElement> fromStubs = new ArrayList<>(functions.evaluate(file));
+        List<PsiElement> namedFromStubs = new ArrayList<>(named.evaluate(file));
+
+        assertNotNull(file.getNode());
+        assertTrue(((PsiFileImpl) file).isContentsLoaded());
+        List<PsiElement> fromAst = new ArrayList<>(functions.evaluate(file));
+        List<PsiElement> namedFromAst = new ArrayList<>(named.evaluate(file));
+
+        // loading the AST binds the stub based elements to its nodes
+        assertEquals(fromAst, fromStubs);
+        assertEquals(namedFromAst, namedFromStubs);
+        assertEquals(fromAst, functions.evaluate(PsiTreeAdapter.INSTANCE, (PsiElement) file));
+        assertEquals("[f, g, h]", names(fromAst).toString());
+    }
+
+    public void testPathWithStepsOutsideStubsUsesAst() throws Exception {
+        PsiFile file = myFixture.addFileToProject("a.sample", CODE);
+        XPath ids = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function/ID");
+
+        List<PsiElement> nodes = new ArrayList<>(ids.evaluate(file));
+
+        assertTrue(((PsiFileImpl) file).isContentsLoaded());
+        assertEquals("[f, g, h]", texts(nodes).toString());
+    }
+
+    private static List<String> names(List<PsiElement> nodes) {
+        List<String> names = new ArrayList<>();
+        for (PsiElement node : nodes) {
+            names.add(((FunctionSubtree) node).getName());
+        }
+        return names;
+    }
+
+    private static List<String> texts(List<PsiElement> nodes) {
+        List<String> texts = new ArrayList<>();
+        for (PsiElement node : nodes) {
+            texts.add(node.getText());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,85 @@
+package org.antlr.jetbrains.adapter.xpath;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.search.GlobalSearchScope;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.antlr.jetbrains.sample.SampleFileType;
+import org.antlr.jetbrains.sample.SampleFixtureTestCase;
+
+/**
+ * Tests for {@link XPathSearch}.
+ */
+public class XPathSearchTest extends SampleFixtureTestCase {
+
+    public void testSearchMatchesEvaluationOfEachFile() throws Exception {
+        PsiFile strings = myFixture.addFileToProject("strings.sample",
+                "var s = \"a\"\nfunc f() {\n    var t = \"b\"\n    var u = 1\n}\n");
+        PsiFile numbers = myFixture.addFileToProject("numbers.sample", "var x = 1\nvar y = x\n");
+        PsiFile print = myFixture.addFileToProject("print.sample", "print(\"c\")\nvar z = 2\n");
+        PsiFile sorted = myFixture.addFileToProject("bubblesort.sample",
+                loadFile("src/test/resources/bubblesort.sample"));
+        List<PsiFile> files = Arrays.asList(strings, numbers, print, sorted);
+        XPath path = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//vardef//STRING");
+
+        List<PsiElement> found = XPathSearch.findAll(getProject(), SampleFileType.INSTANCE, path,
+                GlobalSearchScope.allScope(getProject()));
+
+        List<String> expected = new ArrayList<>();
+        for (PsiFile file : files) {
+            for (PsiElement node : path.evaluate(file)) {
+                expected.add(describe(node));
+            }
+        }
+        List<String> actual = new ArrayList<>();
+        for (PsiElement node : found) {
+            actual.add(describe(node));
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(Arrays.asList("strings.sample:8:\"a\"", "strings.sample:35:\"b\""), actual);
+        assertEquals(expected, actual);
+    }
+
+    public void testFilesWithoutRequiredTokensAreNotParsed() throws Exception {
+        PsiFile strings = myFixture.addFileToProject("strings.sample", "var s = \"a\"\n");
+        PsiFile numbers = myFixture.addFileToProject("numbers.sample", "var x = 1\nvar y = x\n");
+        PsiFile print = myFixture.addFileToProject("print.sample", "print(\"c\")\n");
+        XPath path = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//vardef//STRING");
+
+        List<PsiElement> found = XPathSearch.findAll(getProject(), SampleFileType.INSTANCE, path,
+                GlobalSearchScope.allScope(getProject()));
+
+        assertEquals(1, found.size());
+        assertFalse(((PsiFileImpl) numbers).isContentsLoaded());
+        // lexing finds a string, so the file is parsed, but nothing matches
+        assertTrue(((PsiFileImpl) print).isContentsLoaded());
+        assertTrue(((PsiFileImpl) strings).isContentsLoaded());
+    }
+
+    public void testProcessorStopsSearch() throws Exception {
+        myFixture.addFileToProject("a.sample", "var s = \"a\"\nvar t = \"b\"\n");
+        myFixture.addFileToProject("b.sample", "var u = \"c\"\n");
+        XPath path = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//STRING");
+        List<PsiElement> found = Collections.synchronizedList(new ArrayList<>());
+
+        boolean completed = XPathSearch.search(getProject(), SampleFileType.INSTANCE, path,
+                GlobalSearchScope.allScope(getProject()), new EmptyProgressIndicator(),
+                node -> {
+                    found.add(node);
+                    return false;
+                });
+
+        assertFalse(completed);
+        assertFalse(found.isEmpty());
+    }
+
+    private static String describe(PsiElement node) {
+        return node.getContainingFile().getName() + ":" + node.getTextOffset() + ":" + node.getText();
+    }
+}
@@ -1,13 +1,23 @@
 package org.antlr.jetbrains.adapter.xpath;
 
+import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
+import com.intellij.lang.LighterAST;
+import com.intellij.lang.LighterASTNode;
+import com.intellij.lang.LighterASTTokenNode;
+import com.intellij.lang.TreeBackedLighterAST;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.impl.source.tree.LeafPsiElement;
+import com.intellij.psi.tree.TokenSet;
 import com.intellij.testFramework.ParsingTestCase;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import org.antlr.jetbrains.sample.SampleLanguage;
 import org.antlr.jetbrains.sample.SampleParserDefinition;
+import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
 
 /**
  * Tests for {@link XPath}.
@@ -105,6 +115,18 @@ public class XPathTest extends ParsingTestCase {
         checkXPathResults(code, xpath, output);
     }
 
+    public void testNestedAnywhereReportsEachNodeOnce() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        String output =
+                "x\n"
+                        + "i\n"
+                        + "j\n"
+                        + "swap\n"
+                        + "x";
+        String xpath = "//block//vardef/ID";
+        checkXPathResults(code, xpath, output);
+    }
+
     public void testRuleUnderWildcard() throws Exception {
         String code = loadFile("src/test/resources/test.sample");
         String output =
@@ -170,6 +192,156 @@ public class XPathTest extends ParsingTestCase {
         assertEquals(output.trim(), buf.toString().trim());
     }
 
+    public void testCompiledPathIsCached() throws Exception {
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//vardef/ID");
+        assertSame(xpath, XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//vardef/ID"));
+        assertEquals("//vardef/ID", xpath.getPath());
+    }
+
+    public void testInvalidRuleName() throws Exception {
+        try {
+            XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//nosuchrule");
+            fail("expected invalid rule name");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("nosuchrule"));
+        }
+    }
+
+    public void testStreamingEvaluation() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//block/vardef/ID");
+        assertEquals(5, xpath.count(myFile));
+        assertTrue(xpath.exists(myFile));
+        assertEquals("x", xpath.findFirst(myFile).getText());
+        assertEquals("swap", xpath.findFirst(myFile, n -> n.getText().startsWith("s")).getText());
+        assertNull(xpath.findFirst(myFile, n -> n.getText().equals("nosuchname")));
+    }
+
+    public void testCachedResultsAreReused() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//block/vardef/ID");
+        List<PsiElement> nodes = xpath.evaluateCached(myFile);
+        assertEquals(new ArrayList<>(xpath.evaluate(myFile)), nodes);
+        assertSame(nodes, xpath.evaluateCached(myFile));
+    }
+
+    public void testCachedResultsOfBoundPaths() throws Exception {
+        String code = loadFile("src/test/resources/test.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "/script/function[@name=$f]/ID");
+        List<PsiElement> g = xpath.bind("f", "g").evaluateCached(myFile);
+        List<PsiElement> h = xpath.bind("f", "h").evaluateCached(myFile);
+        assertEquals("g", g.get(0).getText());
+        assertEquals("h", h.get(0).getText());
+        assertSame(g, xpath.bind("f", "g").evaluateCached(myFile));
+        assertSame(h, xpath.bind("f", "h").evaluateCached(myFile));
+    }
+
+    public void testEvaluateOverAst() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//block/vardef/ID");
+        List<ASTNode> nodes = xpath.evaluate(AstTreeAdapter.INSTANCE, myFile.getNode());
+        StringBuilder buf = new StringBuilder();
+        for (ASTNode node : nodes) {
+            buf.append(node.getText()).append("\n");
+        }
+        assertEquals("x\ni\nj\nswap\nx", buf.toString().trim());
+    }
+
+    public void testTextPredicate() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        String output =
+                "x\n"
+                        + "x";
+        String xpath = "//block/vardef/ID[.='x']";
+        checkXPathResults(code, xpath, output);
+    }
+
+    public void testNamePredicateWithVariable() throws Exception {
+        String code = loadFile("src/test/resources/test.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "/script/function[@name=$f]/ID");
+        assertEquals("g", xpath.bind("f", "g").findFirst(myFile).getText());
+        assertNull(xpath.bind("f", "nosuchfunction").findFirst(myFile));
+        assertEquals(2, XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "/script/function[@name!='g']")
+                .count(myFile));
+    }
+
+    public void testBoundPathWithNestedAnywhereSteps() throws Exception {
+        String code = loadFile("src/test/resources/test.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "//function[@name=$f]//vardef/ID");
+        for (String name : new String[]{"f", "g", "h", "nosuchfunction"}) {
+            XPath literal = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY,
+                    "//function[@name='" + name + "']//vardef/ID");
+            assertEquals(name, literal.evaluate(myFile), xpath.bind("f", name).evaluate(myFile));
+        }
+        assertEquals("y", xpath.bind("f", "f").findFirst(myFile).getText());
+    }
+
+    public void testNamePredicateOverLighterAst() throws Exception {
+        String code = loadFile("src/test/resources/test.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        LighterAST tree = new TreeBackedLighterAST(myFile.getNode());
+        XPath xpath = XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, "/script/function[@name='g']/ID");
+        List<LighterASTNode> nodes = xpath.evaluate(
+                new LighterAstTreeAdapter(tree, PARSER_DEFINITION, TokenSet.create(SampleParserDefinition.ID)),
+                tree.getRoot());
+        assertEquals(1, nodes.size());
+        assertEquals("g", ((LighterASTTokenNode) nodes.get(0)).getText().toString());
+        // without identifier types, nodes have no name
+        assertTrue(xpath.evaluate(new LighterAstTreeAdapter(tree, PARSER_DEFINITION), tree.getRoot()).isEmpty());
+    }
+
+    public void testTreePattern() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        PsiTreePattern pattern = PsiTreePattern.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY,
+                new SampleLanguageLexer(null), new SampleLanguageParser(null), "<ID> = <expr>", "statement");
+        StringBuilder buf = new StringBuilder();
+        for (PsiTreeMatch match : pattern.findAll(myFile)) {
+            buf.append(match.get("ID").getText()).append("\n");
+            assertTrue(match.getTree().getText().startsWith(match.get("ID").getText()));
+        }
+        assertEquals("j\ni", buf.toString().trim());
+    }
+
+    public void testBatchMatchesSeparateEvaluation() throws Exception {
+        String code = loadFile("src/test/resources/bubblesort.sample");
+        myFile = createPsiFile("a", code);
+        ensureParsed(myFile);
+
+        String[] paths = {"/script/function/ID", "//block/vardef/ID", "//function/block/vardef/ID", "//'if'",
+            "//function/*/statement/*", "/script/function/block/statement/!'while'", "//vardef/ID[.='x']"};
+        List<XPath> compiled = new ArrayList<>();
+        for (String path : paths) {
+            compiled.add(XPath.compile(PARSER_DEFINITION.PSI_ELEMENT_TYPE_FACTORY, path));
+        }
+        List<List<PsiElement>> results = XPathBatch.of(compiled).evaluate(myFile);
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], new ArrayList<>(compiled.get(i).evaluate(myFile)), results.get(i));
+        }
+    }
+
     // S U P P O R T
 
     protected void checkXPathResults(String code, String xpath, String allNodesText) throws IOException {
@@ -0,0 +1,52 @@
+package org.antlr.jetbrains.sample;
+
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.fileTypes.ex.FileTypeManagerEx;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base class for tests that need a project, documents or stubs, e.g. to
+ * edit files. The sample language and its file type are registered for
+ * the duration of each test.
+ */
+public abstract class SampleFixtureTestCase extends LightPlatformCodeInsightFixtureTestCase {
+
+    protected static final SampleParserDefinition PARSER_DEFINITION = new SampleParserDefinition();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LanguageParserDefinitions.INSTANCE.addExplicitExtension(SampleLanguage.INSTANCE, PARSER_DEFINITION);
+        ApplicationManager.getApplication().runWriteAction(() -> FileTypeManager.getInstance()
+                .registerFileType(SampleFileType.INSTANCE, SampleFileType.FILE_EXTENSION));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            ApplicationManager.getApplication().runWriteAction(() -> FileTypeManagerEx.getInstanceEx()
+                    .unregisterFileType(SampleFileType.INSTANCE));
+            LanguageParserDefinitions.INSTANCE.removeExplicitExtension(SampleLanguage.INSTANCE, PARSER_DEFINITION);
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    /**
+     * Create a physical sample file with given text, opened in the
+     * fixture's editor.
+     */
+    protected PsiFile createSampleFile(String text) {
+        return myFixture.configureByText(SampleFileType.INSTANCE, text);
+    }
+
+    protected static String loadFile(String path) throws IOException {
+        return FileUtil.loadFile(new File(path));
+    }
+}
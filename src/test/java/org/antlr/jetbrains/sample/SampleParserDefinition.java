@@ -9,32 +9,56 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.stubs.PsiFileStub;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.IStubFileElementType;
 import com.intellij.psi.tree.TokenSet;
 import org.antlr.jetbrains.adapter.lexer.AntlrLexerAdapter;
 import org.antlr.jetbrains.adapter.lexer.PsiElementTypeFactory;
-import org.antlr.jetbrains.adapter.lexer.RuleIElementType;
 import org.antlr.jetbrains.adapter.lexer.TokenIElementType;
 import org.antlr.jetbrains.adapter.parser.AntlrParserAdapter;
 import org.antlr.jetbrains.adapter.psi.AntlrPsiNode;
+import org.antlr.jetbrains.adapter.psi.SubtreeTypes;
+import org.antlr.jetbrains.sample.parser.SampleLanguageElementTypes;
 import org.antlr.jetbrains.sample.parser.SampleLanguageLexer;
 import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
 import org.antlr.jetbrains.sample.psi.ArgdefSubtree;
 import org.antlr.jetbrains.sample.psi.BlockSubtree;
 import org.antlr.jetbrains.sample.psi.CallSubtree;
+import org.antlr.jetbrains.sample.psi.FunctionElementType;
 import org.antlr.jetbrains.sample.psi.FunctionSubtree;
 import org.antlr.jetbrains.sample.psi.SamplePsiFileRoot;
 import org.antlr.jetbrains.sample.psi.VardefSubtree;
-import org.antlr.v4.runtime.Parser;
-import org.antlr.v4.runtime.tree.ParseTree;
 import org.jetbrains.annotations.NotNull;
 
 public class SampleParserDefinition implements ParserDefinition {
-    public static final IFileElementType FILE =
-            new IFileElementType(SampleLanguage.INSTANCE);
-
-    public static final PsiElementTypeFactory PSI_ELEMENT_TYPE_FACTORY = PsiElementTypeFactory.create(SampleLanguage.INSTANCE, new SampleLanguageParser(null));
+    /**
+     * Files have stubs, so functions can be found without parsing them.
+     */
+    public static final IStubFileElementType<PsiFileStub<SamplePsiFileRoot>> FILE =
+            new IStubFileElementType<PsiFileStub<SamplePsiFileRoot>>(SampleLanguage.INSTANCE) {
+                @NotNull
+                @Override
+                public String getExternalId() {
+                    return "sample.FILE";
+                }
+            };
+
+    public static final PsiElementTypeFactory PSI_ELEMENT_TYPE_FACTORY = SampleLanguageElementTypes
+            .builder(SampleLanguage.INSTANCE)
+            .addRuleElementType(FunctionElementType.INSTANCE)
+            .addPsiElement(SampleLanguageParser.RULE_function, FunctionSubtree::new)
+            .addPsiElement(SampleLanguageParser.RULE_vardef, VardefSubtree::new)
+            .addPsiElement(SampleLanguageParser.RULE_formal_arg, ArgdefSubtree::new)
+            .addPsiElement(SampleLanguageParser.RULE_block, BlockSubtree::new)
+            .addPsiElement(SampleLanguageParser.RULE_call_expr, CallSubtree::new)
+            .defaultPsiElement(AntlrPsiNode::new)
+            .build();
+
+    static {
+        SubtreeTypes.track(SampleLanguage.INSTANCE);
+    }
 
     public static final TokenIElementType ID = PSI_ELEMENT_TYPE_FACTORY.getTokenIElementTypes()
             .get(SampleLanguageLexer.ID);
@@ -63,17 +87,11 @@ public class SampleParserDefinition implements ParserDefinition {
     @NotNull
     public PsiParser createParser(final Project project) {
         final SampleLanguageParser parser = new SampleLanguageParser(null);
-        return new AntlrParserAdapter(SampleLanguage.INSTANCE, parser, PSI_ELEMENT_TYPE_FACTORY) {
-            @Override
-            protected ParseTree parse(Parser parser, IElementType root) {
-                // start rule depends on root passed in; sometimes we want to create an ID node etc...
-                if (root instanceof IFileElementType) {
-                    return ((SampleLanguageParser) parser).script();
-                }
-                // let's hope it's an ID as needed by "rename function"
-                return ((SampleLanguageParser) parser).primary();
-            }
-        };
+        // start rule depends on root passed in; sometimes we want to create an ID node etc...
+        // let's hope it's an ID as needed by "rename function"
+        return new AntlrParserAdapter(SampleLanguage.INSTANCE, parser, PSI_ELEMENT_TYPE_FACTORY)
+                .registerFileStartRule("script")
+                .registerDefaultStartRule("primary");
     }
 
     /**
@@ -143,31 +161,11 @@ public class SampleParserDefinition implements ParserDefinition {
      * <p>
      * If you don't care to distinguish PSI nodes by type, it is
      * sufficient to create a {@link AntlrPsiNode} around
-     * the parse tree node
+     * the parse tree node. Here, element classes are registered per rule
+     * on {@link #PSI_ELEMENT_TYPE_FACTORY}, which dispatches by rule index.
      */
     @NotNull
     public PsiElement createElement(ASTNode node) {
-        IElementType elType = node.getElementType();
-        if (elType instanceof TokenIElementType) {
-            return new AntlrPsiNode(node);
-        }
-        if (!(elType instanceof RuleIElementType)) {
-            return new AntlrPsiNode(node);
-        }
-        RuleIElementType ruleElType = (RuleIElementType) elType;
-        switch (ruleElType.getRuleIndex()) {
-            case SampleLanguageParser.RULE_function:
-                return new FunctionSubtree(node, this);
-            case SampleLanguageParser.RULE_vardef:
-                return new VardefSubtree(node, this);
-            case SampleLanguageParser.RULE_formal_arg:
-                return new ArgdefSubtree(node, this);
-            case SampleLanguageParser.RULE_block:
-                return new BlockSubtree(node, this);
-            case SampleLanguageParser.RULE_call_expr:
-                return new CallSubtree(node);
-            default:
-                return new AntlrPsiNode(node);
-        }
+        return PSI_ELEMENT_TYPE_FACTORY.createElement(node);
     }
 }
@@ -12,17 +12,14 @@ import org.jetbrains.annotations.Nullable;
 
 public class BlockSubtree extends AntlrPsiNode implements ScopeNode {
 
-    private final SampleParserDefinition parserDefinition;
-
-    public BlockSubtree(@NotNull ASTNode node, SampleParserDefinition parserDefinition) {
+    public BlockSubtree(@NotNull ASTNode node) {
         super(node);
-        this.parserDefinition = parserDefinition;
     }
 
     @Nullable
     @Override
     public PsiElement resolve(PsiNamedElement element) {
-        return SymtabUtils.resolve(this, parserDefinition.PSI_ELEMENT_TYPE_FACTORY,
+        return SymtabUtils.resolve(this, SampleParserDefinition.PSI_ELEMENT_TYPE_FACTORY,
                 element, "/block/vardef/ID");
     }
 }
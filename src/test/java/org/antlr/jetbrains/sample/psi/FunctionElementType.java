@@ -0,0 +1,56 @@
+package org.antlr.jetbrains.sample.psi;
+
+import com.intellij.psi.stubs.IndexSink;
+import com.intellij.psi.stubs.StubElement;
+import com.intellij.psi.stubs.StubInputStream;
+import com.intellij.psi.stubs.StubOutputStream;
+import java.io.IOException;
+import org.antlr.jetbrains.adapter.lexer.RuleIStubElementTypeImpl;
+import org.antlr.jetbrains.sample.SampleLanguage;
+import org.antlr.jetbrains.sample.parser.SampleLanguageParser;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Element type of function definitions. Functions are kept in the stub
+ * tree, so they can be found by name without parsing the file.
+ */
+public class FunctionElementType extends RuleIStubElementTypeImpl<FunctionStub, FunctionSubtree> {
+    public static final FunctionElementType INSTANCE = new FunctionElementType();
+
+    private FunctionElementType() {
+        super(SampleLanguageParser.RULE_function, "function", SampleLanguage.INSTANCE);
+    }
+
+    @Override
+    public FunctionSubtree createPsi(@NotNull FunctionStub stub) {
+        return new FunctionSubtree(stub, this);
+    }
+
+    @NotNull
+    @Override
+    public FunctionStub createStub(@NotNull FunctionSubtree psi, StubElement parentStub) {
+        return new FunctionStub(parentStub, this, psi.getName());
+    }
+
+    @NotNull
+    @Override
+    public String getExternalId() {
+        return "sample.function";
+    }
+
+    @Override
+    public void serialize(@NotNull FunctionStub stub, @NotNull StubOutputStream dataStream) throws IOException {
+        dataStream.writeName(stub.getName());
+    }
+
+    @NotNull
+    @Override
+    public FunctionStub deserialize(@NotNull StubInputStream dataStream, StubElement parentStub)
+            throws IOException {
+        return new FunctionStub(parentStub, this, dataStream.readName());
+    }
+
+    @Override
+    public void indexStub(@NotNull FunctionStub stub, @NotNull IndexSink sink) {
+    }
+}
@@ -0,0 +1,16 @@
+package org.antlr.jetbrains.sample.psi;
+
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.psi.stubs.NamedStubBase;
+import com.intellij.psi.stubs.StubElement;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stub of a function definition; it only keeps the function name.
+ */
+public class FunctionStub extends NamedStubBase<FunctionSubtree> {
+
+    public FunctionStub(StubElement parent, IStubElementType elementType, @Nullable String name) {
+        super(parent, elementType, name);
+    }
+}
@@ -2,9 +2,12 @@ package org.antlr.jetbrains.sample.psi;
 
 import com.intellij.lang.ASTNode;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiNameIdentifierOwner;
 import com.intellij.psi.PsiNamedElement;
+import com.intellij.psi.stubs.IStubElementType;
+import com.intellij.util.IncorrectOperationException;
 import org.antlr.jetbrains.adapter.SymtabUtils;
-import org.antlr.jetbrains.adapter.psi.IdentifierDefSubtree;
+import org.antlr.jetbrains.adapter.psi.AntlrStubBasedPsiNode;
 import org.antlr.jetbrains.adapter.psi.ScopeNode;
 import org.antlr.jetbrains.sample.SampleParserDefinition;
 import org.jetbrains.annotations.NotNull;
@@ -13,20 +16,57 @@ import org.jetbrains.annotations.Nullable;
 /**
  * A subtree associated with a function definition.
  * Its scope is the set of arguments.
+ * <p>
+ * Functions are stub based: their names are available from the stub
+ * tree without parsing the file, see {@link FunctionElementType}.
  */
-public class FunctionSubtree extends IdentifierDefSubtree implements ScopeNode {
+public class FunctionSubtree extends AntlrStubBasedPsiNode<FunctionStub>
+        implements PsiNameIdentifierOwner, ScopeNode {
 
-    private final SampleParserDefinition parserDefinition;
+    public FunctionSubtree(@NotNull ASTNode node) {
+        super(node);
+    }
+
+    public FunctionSubtree(@NotNull FunctionStub stub, @NotNull IStubElementType type) {
+        super(stub, type);
+    }
+
+    @Override
+    public String getName() {
+        FunctionStub stub = getStub();
+        if (stub != null) {
+            return stub.getName();
+        }
+        PsiElement id = getNameIdentifier();
+        return id != null ? id.getText() : null;
+    }
+
+    @Nullable
+    @Override
+    public PsiElement getNameIdentifier() {
+        ASTNode idNode = getNode().findChildByType(SampleParserDefinition.ID);
+        return idNode != null ? idNode.getPsi() : null;
+    }
 
-    public FunctionSubtree(@NotNull ASTNode node, SampleParserDefinition parserDefinition) {
-        super(node, parserDefinition.ID);
-        this.parserDefinition = parserDefinition;
+    @Override
+    public int getTextOffset() {
+        PsiElement id = getNameIdentifier();
+        return id != null ? id.getTextOffset() : super.getTextOffset();
+    }
+
+    @Override
+    public PsiElement setName(@NotNull String name) throws IncorrectOperationException {
+        PsiNamedElement idNode = (PsiNamedElement) getNameIdentifier();
+        if (idNode != null) {
+            return idNode.setName(name);
+        }
+        return this;
     }
 
     @Nullable
     @Override
     public PsiElement resolve(PsiNamedElement element) {
-        return SymtabUtils.resolve(this, parserDefinition.PSI_ELEMENT_TYPE_FACTORY,
+        return SymtabUtils.resolve(this, SampleParserDefinition.PSI_ELEMENT_TYPE_FACTORY,
                 element, "/script/function/ID");
     }
 }